@@ -0,0 +1,63 @@
+package com.mongodb.solcon;
+
+import java.lang.management.ManagementFactory;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+
+/* Measures what DocumentFactory allocates, no server needed:
+
+    java -cp bin/UniBench.jar com.mongodb.solcon.AllocationBenchmark [nDocs] [docSizeKB] [shape]
+
+nDocs defaults to 200000 and docSizeKB to 2, shape is DocumentShape JSON. It reports the bytes
+allocated building a factory (what every worker pays, whether or not it makes documents) and
+per document after a warm up pass, alongside the mean document size so the overhead beyond the
+document bytes themselves is plain. Allocation is counted with the HotSpot per-thread counter,
+so it covers only this thread and needs a JVM that supports it. */
+
+public class AllocationBenchmark {
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  public static void main(String[] args) {
+    int nDocs = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    double docSizeKB = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+    Document testConfig = new Document();
+    if (args.length > 2) {
+      testConfig.put("shape", Document.parse(args[2]));
+    }
+    if (!THREADS.isThreadAllocatedMemorySupported()) {
+      System.out.println("This JVM can't count allocation per thread");
+      return;
+    }
+    THREADS.setThreadAllocatedMemoryEnabled(true);
+    int docsizeBytes = (int) (docSizeKB * 1024);
+    DocumentShape shape = DocumentShape.fromConfig(testConfig, 200);
+    // The first one loads the corpus and classes that are shared, so count the second
+    new DocumentFactory(1, "OBJECT_ID", docsizeBytes, 200, shape).createDocument();
+
+    long before = THREADS.getCurrentThreadAllocatedBytes();
+    DocumentFactory factory = new DocumentFactory(0, "OBJECT_ID", docsizeBytes, 200, shape);
+    long constructed = THREADS.getCurrentThreadAllocatedBytes() - before;
+
+    run(factory, nDocs); // Warm up so the JIT has done its work before we count
+    before = THREADS.getCurrentThreadAllocatedBytes();
+    long start = System.nanoTime();
+    long docBytes = run(factory, nDocs);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long allocated = THREADS.getCurrentThreadAllocatedBytes() - before;
+
+    System.out.printf("Factory construction: %d bytes%n", constructed);
+    System.out.printf(
+        "Per document: %.1f bytes allocated, %.1f bytes of document, %.0f docs/s%n",
+        allocated / (double) nDocs, docBytes / (double) nDocs, nDocs / seconds);
+  }
+
+  private static long run(DocumentFactory factory, int nDocs) {
+    long docBytes = 0;
+    for (int i = 0; i < nDocs; i++) {
+      RawBsonDocument doc = factory.createDocument();
+      docBytes += doc.getByteBuffer().remaining();
+    }
+    return docBytes;
+  }
+}
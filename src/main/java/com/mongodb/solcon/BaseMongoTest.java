@@ -1,8 +1,10 @@
 package com.mongodb.solcon;
 
 import com.mongodb.client.MongoClient;
-import java.util.Random;
+import java.time.Instant;
+import java.util.SplittableRandom;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 import org.bson.Document;
 
 public class BaseMongoTest implements Runnable {
@@ -11,7 +13,13 @@ public class BaseMongoTest implements Runnable {
   protected Document testConfig;
   protected long threadNo;
   protected long nThreads;
-  protected Random random; // Thread Local instance but seedable
+  protected SplittableRandom random; // This thread's own stream, see RandomStreams
+  protected LatencyHistogram latencyHistogram; // Per thread, or a shared stripe if virtual
+  protected RunContext runContext; // Shared by all threads in this run
+  protected com.mongodb.reactivestreams.client.MongoClient reactiveClient; // Reactive engine only
+  protected InFlightWindow inFlightWindow; // Null unless using the reactive engine
+  private boolean sharedHistogram;
+  protected Document loadInfo; // Set by GenerateData when it loads data, see ParallelLoader
 
   protected BaseMongoTest(
       MongoClient client,
@@ -23,18 +31,117 @@ public class BaseMongoTest implements Runnable {
     this.testConfig = config;
     this.nThreads = nThreads;
     this.threadNo = threadNo;
-    this.random = new Random(threadNo); // Repeatable
+    this.random = RandomStreams.forThread(RandomStreams.runSeed(config), threadNo); // Repeatable
     this.testReturnInfo = testReturnInfo;
   }
 
+  public void setRunContext(RunContext runContext) {
+    this.runContext = runContext;
+    if (runContext.isReactive()) {
+      inFlightWindow = new InFlightWindow(this, runContext.getMaxInFlight());
+    }
+    // Reactive operations complete on driver threads so they can't use a single writer histogram
+    sharedHistogram = runContext.hasHistogramStripes() || runContext.isReactive();
+    latencyHistogram =
+        runContext.hasHistogramStripes()
+            ? runContext.histogramStripe(threadNo)
+            : new LatencyHistogram();
+  }
+
+  public void setReactiveClient(com.mongodb.reactivestreams.client.MongoClient reactiveClient) {
+    this.reactiveClient = reactiveClient;
+  }
+
+  /* Returns the time to measure the next operation from. Closed loop this is just now, open loop
+  it waits for the next slot on the shared timetable and returns when that slot was due - which
+  is in the past if every worker is behind. */
+  protected long nextOperationStart() {
+    if (runContext == null || !runContext.isOpenLoop()) {
+      return System.nanoTime();
+    }
+    long intendedStart = runContext.claimSlot();
+    long wait;
+    while ((wait = intendedStart - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(wait);
+    }
+    return intendedStart;
+  }
+
+  /* Loop condition for a worker. It carries on for its share of the operations, or for the whole
+  test time if one is set - unless the run is controlled from outside (ramp mode), when it carries
+  on until told to stop. */
+  protected boolean keepRunning(long opsDone, long opsPerThread, long startMillis, int testTimeSecs) {
+    if (runContext != null && runContext.isRunUntilStopped()) {
+      return !runContext.isStopRequested();
+    }
+    if (testTimeSecs > 0) {
+      return System.currentTimeMillis() - startMillis < testTimeSecs * 1000L;
+    }
+    return opsDone < opsPerThread;
+  }
+
+  // Time an operation from a System.nanoTime() taken just before it was issued
+  protected void recordLatency(long startNanos) {
+    long elapsed = System.nanoTime() - startNanos;
+    if (latencyHistogram == null) {
+      latencyHistogram = new LatencyHistogram();
+    }
+    if (sharedHistogram) {
+      // Held only for a few array increments so contention or pinning a carrier is harmless
+      synchronized (latencyHistogram) {
+        latencyHistogram.recordValue(elapsed);
+      }
+    } else {
+      latencyHistogram.recordValue(elapsed);
+    }
+  }
+
+  // Count a failed operation, call as well as recordLatency not instead of it
+  protected void recordError() {
+    if (latencyHistogram == null) {
+      latencyHistogram = new LatencyHistogram();
+    }
+    if (sharedHistogram) {
+      synchronized (latencyHistogram) {
+        latencyHistogram.recordError();
+      }
+    } else {
+      latencyHistogram.recordError();
+    }
+  }
+
+  public LatencyHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  /** How the last data load went, or null if nothing was loaded since the last call. */
+  public Document takeLoadInfo() {
+    Document info = loadInfo;
+    loadInfo = null;
+    return info;
+  }
+
   public void GenerateData() {
     throw new UnsupportedOperationException("Unimplemented method 'GenerateData'");
   }
 
   public void WarmCache() {}
 
+  // Called once the worker is set up but before the run starts - per-run setup that should not
+  // be timed (parsing the variant, explains, server status) goes here
+  public void prepare() {}
+
   public void TestReset() {}
 
+  // Called after TestReset with the variant that runs next, or null after the last one, so a
+  // test can get the next reset's work started while this variant runs
+  public void prepareNextReset(Document nextVariant) {}
+
+  // Called once the measured run, from startTime to endTime, is over with its results before
+  // they are recorded, so a test can note what it did alongside the run
+  public void runFinished(
+      ConcurrentHashMap<String, Object> testReturnInfo, Instant startTime, Instant endTime) {}
+
   @Override
   public void run() {
     throw new UnsupportedOperationException("Unimplemented method 'run'");
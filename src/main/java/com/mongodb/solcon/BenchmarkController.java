@@ -10,6 +10,8 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -20,9 +22,11 @@ public class BenchmarkController {
     final String testClusterName = "UniBenchTemp";
     ResultRecorder resultRecorder;
     MongoClient mongoClient;
+    com.mongodb.reactivestreams.client.MongoClient reactiveClient; // Created on first use
     Document bmConfig;
     AtlasClusterManager atlasClusterManager;
     boolean isCloudAtlas;
+    DistributedCoordinator coordinator; // Null unless load is spread over worker processes
 
     BenchmarkController() {
         resultRecorder = new ResultRecorder();
@@ -49,6 +53,19 @@ public class BenchmarkController {
         }
     }
 
+    com.mongodb.reactivestreams.client.MongoClient getReactiveClient() {
+        if (reactiveClient == null) {
+            logger.info("Connecting to MongoDB with the reactive streams driver...");
+            reactiveClient =
+                    com.mongodb.reactivestreams.client.MongoClients.create(System.getenv("MONGO_URI"));
+        }
+        return reactiveClient;
+    }
+
+    public void setCoordinator(DistributedCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
     public void runBenchmark(String configFile) {
         bmConfig = readConfigFile(configFile);
 
@@ -98,6 +115,9 @@ public class BenchmarkController {
                 runTest(testConfigFile);
             }
         }
+        if (coordinator != null) {
+            coordinator.close();
+        }
         // Tear down at end of tests if specified - often this will be in own file
         if (tearDownAtlas) {
             try {
@@ -145,6 +165,7 @@ public class BenchmarkController {
             // If data needs generated (or verified), do it in the test class here
             if (testConfig.getBoolean("generatePerVariant", false) == false) {
                 test.GenerateData();
+                recordLoad(test, testConfig);
             } else {
                 logger.info("Skipping up front data generation as data generated per variant");
             }
@@ -153,7 +174,9 @@ public class BenchmarkController {
 
             int numberOfThreads = testConfig.getInteger("numberOfThreads", 20);
 
-            for (Document variant : testConfig.getList("variants", Document.class)) {
+            List<Document> variants = testConfig.getList("variants", Document.class);
+            for (int variantNo = 0; variantNo < variants.size(); variantNo++) {
+                Document variant = variants.get(variantNo);
                 testConfig.put(
                         "variant",
                         variant); // Set the mode parameter to whatever mode we want - this cna be used to
@@ -175,20 +198,35 @@ public class BenchmarkController {
 
                 /* We can change threads by variant */
 
+                long resetStart = System.nanoTime();
                 test.TestReset();
+                long resetMs = (System.nanoTime() - resetStart) / 1_000_000;
+                logger.info("Reset took {}ms", resetMs);
+                recordLoad(test, testConfig);
+                test.prepareNextReset(variantNo + 1 < variants.size() ? variants.get(variantNo + 1) : null);
 
                 if (variant.containsKey("numberOfThreads")) {
                     numberOfThreads = variant.getInteger("numberOfThreads");
                 }
-                ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+                // One seed for everything the workers pick at random, so the run can be repeated
+                long seed = RandomStreams.seedFromConfig(testConfig);
+                logger.info("Random seed {}", seed);
+                testConfig.put(RandomStreams.RUN_SEED, RandomStreams.warmupSeed(seed));
                 // If the test config defines a warmup routine, run the test once without measuring.
 
                 if (testConfig.getBoolean("warmup", true)) {
                     logger.info("Test Warmup Run");
-                    runTestsInParallel(
-                            testConfig, mongoClient, testClass, numberOfThreads, executorService, null);
+                    if (coordinator != null) {
+                        coordinator.run(testConfig, numberOfThreads, null);
+                    } else {
+                        runTestsInParallel(testConfig, mongoClient, testClass, numberOfThreads,
+                                createExecutor(testConfig, numberOfThreads), null);
+                    }
                 }
                 ConcurrentHashMap<String, Object> testReturnInfo = new ConcurrentHashMap<>();
+                testReturnInfo.put("resetMs", resetMs);
+                testReturnInfo.put("seed", seed);
+                testConfig.put(RandomStreams.RUN_SEED, seed);
                 // Used to capture ServerStatus
                 Document statusBefore;
                 Document statusAfter;
@@ -196,18 +234,39 @@ public class BenchmarkController {
                 assert mongoClient != null;
                 statusBefore = mongoClient.getDatabase("admin").runCommand(new Document("serverStatus", 1));
 
-                executorService = Executors.newFixedThreadPool(numberOfThreads);
-
-                logger.info("Test Live Run {} threads", numberOfThreads);
+                logger.info("Test Live Run {} {} threads", numberOfThreads,
+                        RunContext.usesVirtualThreads(testConfig) ? "virtual" : "platform");
+                // Build the workers before the clock starts - the ramp and the coordinator make
+                // their own
+                RunContext runContext = null;
+                List<BaseMongoTest> workers = null;
+                ExecutorService executorService = null;
+                if (!variant.containsKey("ramp") && coordinator == null) {
+                    executorService = createExecutor(testConfig, numberOfThreads);
+                    runContext = newRunContext(testConfig, testReturnInfo);
+                    workers = createWorkers(testConfig, testClass, numberOfThreads, 0, numberOfThreads,
+                            testReturnInfo, runContext);
+                }
                 Instant startTime = Instant.now();
 
-                runTestsInParallel(
-                        testConfig, mongoClient, testClass, numberOfThreads, executorService, testReturnInfo);
+                LatencyHistogram latency;
+                if (variant.containsKey("ramp")) {
+                    latency = runRamp(testConfig, testClass, testReturnInfo);
+                } else if (coordinator != null) {
+                    logger.info("Distributing over {} workers", coordinator.getWorkerCount());
+                    latency = coordinator.run(testConfig, numberOfThreads, testReturnInfo);
+                    // The workers only start after the coordinator's start delay, so time from then
+                    startTime = Instant.ofEpochMilli(coordinator.getLastStartAtMillis());
+                } else {
+                    latency = runWorkers(testConfig, workers, runContext, executorService, testReturnInfo);
+                }
                 Instant endTime = Instant.now();
+                test.runFinished(testReturnInfo, startTime, endTime);
                 long timeTaken = Duration.between(startTime, endTime).toMillis();
                 logger.info("Test Complete");
 
                 logger.info("Time: {}s", timeTaken / 1000);
+                logger.info("Latency: {}", latency);
                 if (isCloudAtlas) {
 
                     Document metrics =
@@ -225,6 +284,7 @@ public class BenchmarkController {
                             statusBefore,
                             statusAfter,
                             metrics,
+                            latency,
                             startTime,
                             endTime);
                 }
@@ -251,7 +311,8 @@ public class BenchmarkController {
         }
     }
 
-    private void runTestsInParallel(
+    // Returns the latency histograms of every worker merged into one
+    private LatencyHistogram runTestsInParallel(
             Document testConfig,
             MongoClient mongoClient,
             Class<BaseMongoTest> testClass,
@@ -262,18 +323,190 @@ public class BenchmarkController {
             IllegalAccessException,
             java.lang.reflect.InvocationTargetException,
             InterruptedException {
+        return runTestsInParallel(
+                testConfig, testClass, numberOfThreads, 0, numberOfThreads, executorService, testReturnInfo);
+    }
+
+    // Runs threads threadOffset to threadOffset + numberOfThreads - 1 of totalThreads in this process
+    LatencyHistogram runTestsInParallel(
+            Document testConfig,
+            Class<BaseMongoTest> testClass,
+            int numberOfThreads,
+            int threadOffset,
+            int totalThreads,
+            ExecutorService executorService,
+            ConcurrentHashMap<String, Object> testReturnInfo)
+            throws InstantiationException,
+            IllegalAccessException,
+            java.lang.reflect.InvocationTargetException,
+            InterruptedException {
 
-        for (int threadNo = 0; threadNo < numberOfThreads; threadNo++) {
+        RunContext runContext = newRunContext(testConfig, testReturnInfo);
+        List<BaseMongoTest> workers = createWorkers(
+                testConfig, testClass, numberOfThreads, threadOffset, totalThreads, testReturnInfo, runContext);
+        return runWorkers(testConfig, workers, runContext, executorService, testReturnInfo);
+    }
 
-            BaseMongoTest t =
-                    (BaseMongoTest)
-                            testClass.getDeclaredConstructors()[0].newInstance(
-                                    mongoClient, testConfig, numberOfThreads, threadNo, testReturnInfo);
+    RunContext newRunContext(Document testConfig, ConcurrentHashMap<String, Object> testReturnInfo) {
+        RunContext runContext = RunContext.fromConfig(testConfig);
+        if (runContext.isOpenLoop()) {
+            logger.info("Open loop run at {} ops/s", runContext.getTargetOpsPerSec());
+            if (testReturnInfo != null) {
+                testReturnInfo.put("targetOpsPerSec", runContext.getTargetOpsPerSec());
+            }
+        }
+        if (runContext.isReactive()) {
+            logger.info("Reactive engine with up to {} operations in flight per thread",
+                    runContext.getMaxInFlight());
+        }
+        return runContext;
+    }
 
-            executorService.submit(t);
+    // Every worker is built (and prepared) before any of them start so that cost is never timed
+    List<BaseMongoTest> createWorkers(
+            Document testConfig,
+            Class<BaseMongoTest> testClass,
+            int numberOfThreads,
+            int threadOffset,
+            int totalThreads,
+            ConcurrentHashMap<String, Object> testReturnInfo,
+            RunContext runContext)
+            throws InstantiationException,
+            IllegalAccessException,
+            java.lang.reflect.InvocationTargetException {
+        List<BaseMongoTest> workers = new ArrayList<>(numberOfThreads);
+        for (int threadNo = threadOffset; threadNo < threadOffset + numberOfThreads; threadNo++) {
+            workers.add(createWorker(
+                    testConfig, testClass, totalThreads, threadNo, testReturnInfo, runContext));
         }
+        return workers;
+    }
+
+    /* Submits the workers, waits until every one is parked at the start gate and then releases them
+    together. Throughput is reported separately for the ramp up (gate open until the last worker is
+    running), the steady state (all running) and the tail (first worker done until the last). */
+    LatencyHistogram runWorkers(
+            Document testConfig,
+            List<BaseMongoTest> workers,
+            RunContext runContext,
+            ExecutorService executorService,
+            ConcurrentHashMap<String, Object> testReturnInfo)
+            throws InterruptedException {
+
+        // Cursors open before any writes so they see them all - only the measured run is watched
+        ChangeStreamMonitor changeStreams = null;
+        Document changeStreamSpec = ChangeStreamMonitor.specFromConfig(testConfig);
+        if (testReturnInfo != null && changeStreamSpec != null) {
+            changeStreams = new ChangeStreamMonitor(mongoClient, testConfig, changeStreamSpec);
+            changeStreams.start();
+        }
+
+        runContext.expectWorkers(workers.size());
+        for (BaseMongoTest worker : workers) {
+            executorService.submit(runContext.gated(worker));
+        }
+        runContext.awaitReady();
+        runContext.release();
+        // Only the measured run gets a timeline
+        TimelineSampler sampler = null;
+        if (testReturnInfo != null) {
+            sampler = new TimelineSampler(runContext, workers, testConfig);
+            sampler.start();
+        }
+
+        runContext.awaitAllActive();
+        long steadyStart = System.nanoTime();
+        long opsAtSteadyStart = runContext.mergedLatency(workers).getTotalCount();
+        runContext.awaitFirstFinished();
+        long steadyEnd = System.nanoTime();
+        long opsAtSteadyEnd = runContext.mergedLatency(workers).getTotalCount();
+
         executorService.shutdown();
         //noinspection ResultOfMethodCallIgnored
         executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long end = System.nanoTime();
+        if (sampler != null) {
+            testReturnInfo.put("timeline", sampler.stop());
+        }
+        if (changeStreams != null) {
+            testReturnInfo.put("changeStreams", changeStreams.stop());
+        }
+
+        double steadySecs = (steadyEnd - steadyStart) / 1e9;
+        Document phases = new Document()
+                .append("rampUpMs", (steadyStart - runContext.getStartNanos()) / 1_000_000)
+                .append("steadyMs", (steadyEnd - steadyStart) / 1_000_000)
+                .append("tailMs", (end - steadyEnd) / 1_000_000)
+                .append("steadyOps", opsAtSteadyEnd - opsAtSteadyStart)
+                .append("steadyOpsPerSec",
+                        steadySecs > 0 ? Math.round((opsAtSteadyEnd - opsAtSteadyStart) / steadySecs) : 0);
+        logger.info("Phases {}", phases.toJson());
+        if (testReturnInfo != null) {
+            testReturnInfo.put("phases", phases);
+        }
+        return runContext.mergedLatency(workers);
+    }
+
+    private void recordLoad(BaseMongoTest test, Document testConfig) {
+        Document loadInfo = test.takeLoadInfo();
+        if (loadInfo != null) {
+            resultRecorder.recordLoad(testConfig, testConfig.get("variant", Document.class), loadInfo);
+        }
+    }
+
+    private BaseMongoTest createWorker(
+            Document testConfig,
+            Class<BaseMongoTest> testClass,
+            int numberOfThreads,
+            int threadNo,
+            ConcurrentHashMap<String, Object> testReturnInfo,
+            RunContext runContext)
+            throws InstantiationException,
+            IllegalAccessException,
+            java.lang.reflect.InvocationTargetException {
+        BaseMongoTest t =
+                (BaseMongoTest)
+                        testClass.getDeclaredConstructors()[0].newInstance(
+                                mongoClient, testConfig, numberOfThreads, threadNo, testReturnInfo);
+        t.setRunContext(runContext);
+        if (runContext.isReactive()) {
+            t.setReactiveClient(getReactiveClient());
+        }
+        t.prepare();
+        return t;
+    }
+
+    // Steps concurrency up within the one variant, see StepLoadRamp
+    private LatencyHistogram runRamp(
+            Document testConfig,
+            Class<BaseMongoTest> testClass,
+            ConcurrentHashMap<String, Object> testReturnInfo)
+            throws ReflectiveOperationException, InterruptedException {
+        Document variant = testConfig.get("variant", Document.class);
+        StepLoadRamp ramp = new StepLoadRamp(variant.get("ramp", Document.class));
+        RunContext runContext = RunContext.fromConfig(testConfig);
+        ExecutorService executorService = createExecutor(testConfig, ramp.getMaxThreads());
+        List<BaseMongoTest> workers = StepLoadRamp.newWorkerList();
+
+        runContext.start();
+        TimelineSampler sampler = new TimelineSampler(runContext, workers, testConfig);
+        sampler.start();
+        LatencyHistogram latency = ramp.run(
+                runContext,
+                (threadNo, maxThreads) -> createWorker(
+                        testConfig, testClass, maxThreads, threadNo, testReturnInfo, runContext),
+                executorService,
+                workers,
+                testReturnInfo);
+        testReturnInfo.put("timeline", sampler.stop());
+        return latency;
+    }
+
+    // One platform thread per worker by default, or a virtual thread each for very large client counts
+    ExecutorService createExecutor(Document testConfig, int numberOfThreads) {
+        if (RunContext.usesVirtualThreads(testConfig)) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(Math.max(1, numberOfThreads));
     }
 }
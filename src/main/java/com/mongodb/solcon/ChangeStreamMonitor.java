@@ -0,0 +1,232 @@
+package com.mongodb.solcon;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Watches the test's collection with change streams while the workers write to it and measures
+how far behind the events arrive. Turned on with "changeStreams" in the variant or at the top
+level of the test:
+
+    "changeStreams": { "cursors": 1, "stampOnly": false, "drainSecs": 30 }
+
+Tests that support it (InsertTest, UpdateTest) stamp each document they write with STAMP_FIELD,
+the client's time in microseconds, and the lag of an event is the time it is read minus that
+stamp. Each cursor is its own consumer on its own thread and sees every event, as separate
+downstream services would. stampOnly projects the events down to the stamp, otherwise the
+consumers read whole events as a real one would. When the workers finish the cursors carry on
+until they have caught up - no event within the await time - or drainSecs has passed.
+
+Needs a replica set or sharded cluster. Only the measured run is watched, and the results get a
+"changeStreams" section with the lag distribution, events and bytes read per second and how long
+the consumers took to catch up after the writes stopped. */
+
+public class ChangeStreamMonitor {
+  private static final Logger logger = LoggerFactory.getLogger(ChangeStreamMonitor.class);
+  public static final String STAMP_FIELD = "writtenAtMicros";
+  private static final long AWAIT_MILLIS = 100;
+
+  // Wall clock at class load, carried forward by nanoTime so stamps never go backwards
+  private static final long ANCHOR_MICROS = System.currentTimeMillis() * 1000;
+  private static final long ANCHOR_NANOS = System.nanoTime();
+
+  private final MongoCollection<RawBsonDocument> collection;
+  private final int nCursors;
+  private final boolean stampOnly;
+  private final long drainNanos;
+  private final List<Consumer> consumers = new ArrayList<>();
+  private volatile long stopNanos; // 0 until the writes have finished
+  private long startNanos;
+  private String error;
+
+  public ChangeStreamMonitor(MongoClient client, Document testConfig, Document spec) {
+    collection =
+        client
+            .getDatabase(testConfig.getString("database"))
+            .getCollection(testConfig.getString("collection"), RawBsonDocument.class);
+    nCursors = spec.getInteger("cursors", 1);
+    stampOnly = spec.getBoolean("stampOnly", false);
+    drainNanos = (long) (numberOrDefault(spec.get("drainSecs"), 30) * 1e9);
+  }
+
+  private static double numberOrDefault(Object value, double defaultValue) {
+    return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+  }
+
+  /** The variant's changeStreams settings, or the test's, or null if not watching. */
+  public static Document specFromConfig(Document testConfig) {
+    Document variant = testConfig.get("variant", Document.class);
+    Object spec = variant != null ? variant.get("changeStreams") : null;
+    if (spec == null) {
+      spec = testConfig.get("changeStreams");
+    }
+    if (Boolean.TRUE.equals(spec)) {
+      return new Document();
+    }
+    return spec instanceof Document ? (Document) spec : null;
+  }
+
+  /** Now, for STAMP_FIELD, in microseconds since the epoch. */
+  public static long stamp() {
+    return ANCHOR_MICROS + (System.nanoTime() - ANCHOR_NANOS) / 1000;
+  }
+
+  /** Opens the cursors - call before any writes that should be seen - and starts consuming. */
+  public void start() {
+    List<Bson> pipeline = new ArrayList<>();
+    if (stampOnly) {
+      pipeline.add(
+          Aggregates.project(
+              Projections.include(
+                  "operationType",
+                  "fullDocument." + STAMP_FIELD,
+                  "updateDescription.updatedFields." + STAMP_FIELD)));
+    }
+    startNanos = System.nanoTime();
+    try {
+      for (int i = 0; i < nCursors; i++) {
+        // Events left as raw BSON, the consumer only looks at the stamp
+        MongoCursor<RawBsonDocument> cursor =
+            collection
+                .watch(pipeline)
+                .maxAwaitTime(AWAIT_MILLIS, TimeUnit.MILLISECONDS)
+                .withDocumentClass(RawBsonDocument.class)
+                .cursor();
+        Consumer consumer = new Consumer(cursor);
+        consumer.thread = new Thread(consumer::run, "change-stream-" + i);
+        consumer.thread.setDaemon(true);
+        consumers.add(consumer);
+      }
+    } catch (Exception e) {
+      error = e.getMessage();
+      logger.warn("Could not open change streams: {}", error);
+    }
+    for (Consumer consumer : consumers) {
+      consumer.thread.start();
+    }
+    logger.info("Watching {} with {} change stream cursors", collection.getNamespace(), nCursors);
+  }
+
+  /** Waits for the consumers to catch up with the writes and returns what they saw. */
+  public Document stop() {
+    stopNanos = System.nanoTime();
+    for (Consumer consumer : consumers) {
+      try {
+        consumer.thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    LatencyHistogram lag = new LatencyHistogram();
+    long events = 0;
+    long stamped = 0;
+    long bytes = 0;
+    long caughtUpNanos = 0;
+    long lastEventNanos = startNanos;
+    boolean caughtUp = true;
+    for (Consumer consumer : consumers) {
+      lag.add(consumer.lag);
+      events += consumer.events;
+      stamped += consumer.lag.getTotalCount();
+      bytes += consumer.bytes;
+      lastEventNanos = Math.max(lastEventNanos, consumer.lastEventNanos);
+      caughtUpNanos = Math.max(caughtUpNanos, consumer.lastEventNanos - stopNanos);
+      caughtUp &= consumer.caughtUp;
+    }
+    double seconds = (lastEventNanos - startNanos) / 1e9;
+    Document result =
+        new Document("cursors", consumers.size())
+            .append("events", events)
+            .append("stampedEvents", stamped)
+            .append("bytes", bytes);
+    if (seconds > 0 && !consumers.isEmpty()) {
+      double perCursorSeconds = seconds * consumers.size();
+      result.append("eventsPerSecPerCursor", Math.round(events / perCursorSeconds));
+      result.append("MBPerSecPerCursor", Math.round(bytes / perCursorSeconds / 1e5) / 10.0);
+    }
+    result
+        .append("caughtUp", caughtUp)
+        .append("catchUpMs", caughtUpNanos / 1_000_000)
+        .append("lag", lag.toDocument());
+    if (error != null) {
+      result.append("error", error);
+    }
+    logger.info("Change stream lag {} after {} events", lag, events);
+    return result;
+  }
+
+  private class Consumer {
+    final MongoCursor<RawBsonDocument> cursor;
+    final LatencyHistogram lag = new LatencyHistogram(); // Only written by this consumer's thread
+    Thread thread;
+    long events;
+    long bytes;
+    long lastEventNanos;
+    boolean caughtUp;
+
+    Consumer(MongoCursor<RawBsonDocument> cursor) {
+      this.cursor = cursor;
+    }
+
+    void run() {
+      try (cursor) {
+        while (true) {
+          RawBsonDocument event = cursor.tryNext();
+          long stopAt = stopNanos;
+          if (event == null) {
+            if (stopAt != 0) {
+              caughtUp = true;
+              return;
+            }
+            continue;
+          }
+          long now = stamp();
+          lastEventNanos = System.nanoTime();
+          events++;
+          bytes += event.getByteBuffer().remaining();
+          Long written = writtenAt(event);
+          if (written != null) {
+            lag.recordValue(Math.max(0, now - written) * 1000);
+          }
+          if (stopAt != 0 && lastEventNanos - stopAt > drainNanos) {
+            logger.warn("Change stream still behind {}s after writes stopped", drainNanos / 1e9);
+            return;
+          }
+        }
+      } catch (Exception e) {
+        if (stopNanos == 0) {
+          logger.error("Change stream consumer failed", e);
+        }
+      }
+    }
+
+    // The stamp from an insert or replace's document, or an update's changed fields
+    private Long writtenAt(RawBsonDocument event) {
+      BsonValue fields = event.get("fullDocument");
+      if (fields == null || !fields.isDocument()) {
+        BsonValue update = event.get("updateDescription");
+        fields =
+            update != null && update.isDocument()
+                ? update.asDocument().get("updatedFields")
+                : null;
+      }
+      if (fields == null || !fields.isDocument()) {
+        return null;
+      }
+      BsonValue value = fields.asDocument().get(STAMP_FIELD);
+      return value != null && value.isNumber() ? value.asNumber().longValue() : null;
+    }
+  }
+}
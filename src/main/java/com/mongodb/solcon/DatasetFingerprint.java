@@ -0,0 +1,147 @@
+package com.mongodb.solcon;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Updates;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Remembers what generated a test's initial data so it is only reused when it really is the same
+data, and so a load that dies part way can pick up where it left off. The metadata lives in a
+unibench_datasets collection next to the data, one document per collection:
+
+  { _id: <collection>, fingerprint: { testClassName, initialDocsToInsert, docSizeKB, ...,
+    corpusSeed }, complete: false, slices: [ { from, to, next }, ... ] }
+
+The fingerprint is the generation settings from the top level of the config. Each loader slice
+records the next _id it will write once a batch is in, so resuming restarts every slice at its
+own high-water mark. A batch that was written but not recorded is written again, and the
+duplicate key errors that causes are ignored. The loaded _id range of the collection is counted
+too - if it has been dropped or emptied behind the metadata's back the data is generated again.
+Only that range is counted, so documents a test inserted beyond it don't force a reload. */
+
+public class DatasetFingerprint {
+  private static final Logger logger = LoggerFactory.getLogger(DatasetFingerprint.class);
+  static final String METADATA_COLLECTION = "unibench_datasets";
+
+  public enum State {
+    COMPLETE, // Same settings and fully loaded - nothing to do
+    PARTIAL, // Same settings but the load didn't finish - resume it
+    NONE // Missing or made with other settings - start again
+  }
+
+  private final MongoCollection<Document> metadata;
+  private final MongoCollection<Document> data;
+  private final String name;
+  private final Document fingerprint;
+  private Document stored;
+
+  public DatasetFingerprint(MongoDatabase database, String collectionName, Document fingerprint) {
+    this.metadata = database.getCollection(METADATA_COLLECTION);
+    this.data = database.getCollection(collectionName);
+    this.name = collectionName;
+    this.fingerprint = fingerprint;
+  }
+
+  /** The named top level settings of a test config, plus what else decides the data. */
+  public static Document fingerprintOf(Document testConfig, String... keys) {
+    Document fingerprint = new Document("testClassName", testConfig.getString("testClassName"));
+    for (String key : keys) {
+      fingerprint.append(key, testConfig.get(key));
+    }
+    fingerprint.append("corpusSeed", TextCorpus.SEED);
+    return fingerprint;
+  }
+
+  public State check() {
+    stored = metadata.find(Filters.eq("_id", name)).first();
+    if (stored == null || !fingerprint.equals(stored.get("fingerprint", Document.class))) {
+      if (stored != null) {
+        logger.info(
+            "{} was generated with {} - regenerating for {}",
+            name,
+            stored.get("fingerprint", Document.class).toJson(),
+            fingerprint.toJson());
+      }
+      return State.NONE;
+    }
+    // The metadata can outlive the data, so make sure what it describes is still there
+    boolean complete = stored.getBoolean("complete", false);
+    long expected = 0;
+    long lowest = Long.MAX_VALUE;
+    long highest = Long.MIN_VALUE;
+    for (Document slice : stored.getList("slices", Document.class)) {
+      // All of it if complete, otherwise just what a partial load recorded as written
+      long end = complete ? slice.getLong("to") : slice.getLong("next");
+      expected += end - slice.getLong("from");
+      lowest = Math.min(lowest, slice.getLong("from"));
+      highest = Math.max(highest, slice.getLong("to"));
+    }
+    // Loaded documents have _ids from their slices, anything a test added since is outside them
+    long count =
+        expected == 0
+            ? 0
+            : data.countDocuments(
+                Filters.and(Filters.gte("_id", lowest), Filters.lt("_id", highest)));
+    if (complete ? count != expected : count < expected) {
+      logger.info(
+          "{} has {} documents where {} were loaded - regenerating", name, count, expected);
+      stored = null; // So slices() starts afresh rather than resuming
+      return State.NONE;
+    }
+    return complete ? State.COMPLETE : State.PARTIAL;
+  }
+
+  /**
+   * The slices to load, resumed from the stored high-water marks if this is a PARTIAL dataset or
+   * split fresh into nSlices otherwise - in which case the metadata is reset to match.
+   */
+  public List<ParallelLoader.Slice> slices(long nDocs, int nSlices) {
+    List<ParallelLoader.Slice> slices = new ArrayList<>();
+    if (stored != null && fingerprint.equals(stored.get("fingerprint", Document.class))) {
+      int index = 0;
+      for (Document slice : stored.getList("slices", Document.class)) {
+        slices.add(
+            new ParallelLoader.Slice(
+                index++, slice.getLong("from"), slice.getLong("to"), slice.getLong("next")));
+      }
+      return slices;
+    }
+    List<Document> sliceDocs = new ArrayList<>();
+    for (int index = 0; index < nSlices; index++) {
+      long from = nDocs * index / nSlices;
+      long to = nDocs * (index + 1) / nSlices;
+      slices.add(new ParallelLoader.Slice(index, from, to, from));
+      sliceDocs.add(new Document("from", from).append("to", to).append("next", from));
+    }
+    stored =
+        new Document("_id", name)
+            .append("fingerprint", fingerprint)
+            .append("complete", false)
+            .append("started", Date.from(Instant.now()))
+            .append("slices", sliceDocs);
+    metadata.replaceOne(Filters.eq("_id", name), stored, new ReplaceOptions().upsert(true));
+    return slices;
+  }
+
+  /** Everything before next in this slice is in the collection. */
+  public void recordProgress(int slice, long next) {
+    metadata.updateOne(Filters.eq("_id", name), Updates.set("slices." + slice + ".next", next));
+  }
+
+  public void markComplete(Document loadInfo) {
+    metadata.updateOne(
+        Filters.eq("_id", name),
+        Updates.combine(
+            Updates.set("complete", true),
+            Updates.set("finished", Date.from(Instant.now())),
+            Updates.set("load", loadInfo)));
+  }
+}
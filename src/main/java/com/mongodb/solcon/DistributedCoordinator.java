@@ -0,0 +1,196 @@
+package com.mongodb.solcon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Spreads the load of each run over several UniBench worker processes, usually on different
+hosts, when one client JVM can't push the cluster hard enough. The coordinator still reads the
+config, generates data, resets between variants and records results - it just doesn't run any
+load itself. Each run's threads are split into contiguous threadNo ranges, one per worker, so
+a test sees the same threadNo/nThreads it would in a single process.
+
+The control channel is one line of Extended JSON per message over plain TCP:
+  worker -> coordinator  {"type": "hello"}
+  coordinator -> worker  {"type": "run", testConfig, threadOffset, localThreads, totalThreads,
+                          startAtMillis, measured}
+  worker -> coordinator  {"type": "result", testReturnInfo, latency} or {"type": "error", ...}
+  coordinator -> worker  {"type": "shutdown"}
+Workers start at startAtMillis by their own wall clock, so hosts need to be NTP synced. */
+
+public class DistributedCoordinator implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(DistributedCoordinator.class);
+  public static final int DEFAULT_PORT = 27800;
+  static final JsonWriterSettings JSON =
+      JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+  static final long START_DELAY_MILLIS = 2000; // Time for every worker to build its threads
+
+  private final ServerSocket serverSocket;
+  private final List<Connection> workers = new ArrayList<>();
+  private volatile long lastStartAtMillis;
+
+  static class Connection implements AutoCloseable {
+    final Socket socket;
+    final BufferedReader in;
+    final PrintWriter out;
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      in =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      out =
+          new PrintWriter(
+              new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+    }
+
+    void send(Document message) {
+      out.println(message.toJson(JSON));
+    }
+
+    Document receive() throws IOException {
+      String line = in.readLine();
+      if (line == null) {
+        throw new IOException("Connection closed by " + socket.getRemoteSocketAddress());
+      }
+      return Document.parse(line);
+    }
+
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  /** When the workers were told to start the most recent run, in epoch milliseconds. */
+  public long getLastStartAtMillis() {
+    return lastStartAtMillis;
+  }
+
+  /** Listens on the port and blocks until nWorkers workers have connected. */
+  public DistributedCoordinator(int port, int nWorkers) throws IOException {
+    serverSocket = new ServerSocket(port);
+    logger.info("Waiting for {} workers to connect on port {}", nWorkers, port);
+    while (workers.size() < nWorkers) {
+      Connection connection = new Connection(serverSocket.accept());
+      Document hello = connection.receive();
+      if (!"hello".equals(hello.getString("type"))) {
+        logger.error("Unexpected message from worker: {}", hello.toJson());
+        connection.close();
+        continue;
+      }
+      workers.add(connection);
+      logger.info(
+          "Worker {} connected from {}",
+          workers.size(),
+          connection.socket.getRemoteSocketAddress());
+    }
+  }
+
+  /**
+   * Runs the current variant of testConfig across all the workers and waits for them to finish.
+   * Numeric entries in the workers' testReturnInfo are summed, anything else is kept per worker
+   * under "workers". testReturnInfo is null for a warmup run.
+   */
+  public LatencyHistogram run(
+      Document testConfig, int numberOfThreads, ConcurrentHashMap<String, Object> testReturnInfo)
+      throws IOException {
+    int nWorkers = workers.size();
+    long startAtMillis = System.currentTimeMillis() + START_DELAY_MILLIS;
+    lastStartAtMillis = startAtMillis;
+
+    // An open loop target is for the whole cluster so each worker gets its share
+    double targetOpsPerSec = RunContext.numberFromConfig(testConfig, "targetOpsPerSec", 0);
+    Document workerConfig = Document.parse(testConfig.toJson(JSON)); // Deep copy
+    if (targetOpsPerSec > 0) {
+      workerConfig
+          .get("variant", Document.class)
+          .put("targetOpsPerSec", targetOpsPerSec / nWorkers);
+    }
+
+    int threadOffset = 0;
+    for (int w = 0; w < nWorkers; w++) {
+      int localThreads = numberOfThreads / nWorkers + (w < numberOfThreads % nWorkers ? 1 : 0);
+      workers
+          .get(w)
+          .send(
+              new Document("type", "run")
+                  .append("testConfig", workerConfig)
+                  .append("threadOffset", threadOffset)
+                  .append("localThreads", localThreads)
+                  .append("totalThreads", numberOfThreads)
+                  .append("startAtMillis", startAtMillis)
+                  .append("measured", testReturnInfo != null));
+      threadOffset += localThreads;
+    }
+
+    LatencyHistogram merged = new LatencyHistogram();
+    List<Document> perWorker = new ArrayList<>();
+    for (int w = 0; w < nWorkers; w++) {
+      Document reply = workers.get(w).receive();
+      if (!"result".equals(reply.getString("type"))) {
+        logger.error("Worker {} failed: {}", w + 1, reply.getString("message"));
+        continue;
+      }
+      merged.add(LatencyHistogram.fromDocument(reply.get("latency", Document.class)));
+      if (testReturnInfo == null) {
+        continue;
+      }
+      Document workerInfo = new Document("worker", w + 1);
+      for (Map.Entry<String, Object> entry :
+          reply.get("testReturnInfo", Document.class).entrySet()) {
+        if (entry.getValue() instanceof Number) {
+          testReturnInfo.merge(entry.getKey(), entry.getValue(), DistributedCoordinator::sum);
+        } else {
+          workerInfo.put(entry.getKey(), entry.getValue());
+        }
+      }
+      perWorker.add(workerInfo);
+    }
+    if (testReturnInfo != null) {
+      testReturnInfo.put("workers", perWorker);
+    }
+    return merged;
+  }
+
+  private static Object sum(Object a, Object b) {
+    if (a instanceof Double || b instanceof Double) {
+      return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+    }
+    return ((Number) a).longValue() + ((Number) b).longValue();
+  }
+
+  public int getWorkerCount() {
+    return workers.size();
+  }
+
+  @Override
+  public void close() {
+    for (Connection worker : workers) {
+      try {
+        worker.send(new Document("type", "shutdown"));
+        worker.close();
+      } catch (IOException e) {
+        logger.debug("Error closing worker connection", e);
+      }
+    }
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      logger.debug("Error closing server socket", e);
+    }
+  }
+}
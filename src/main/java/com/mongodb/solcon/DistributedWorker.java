@@ -0,0 +1,115 @@
+package com.mongodb.solcon;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* The load generating side of a distributed run, see DistributedCoordinator. Connects to the
+coordinator, then runs whatever share of each variant it is handed against its own MONGO_URI
+connection until told to shut down. */
+
+public class DistributedWorker {
+  private static final Logger logger = LoggerFactory.getLogger(DistributedWorker.class);
+  private final String host;
+  private final int port;
+  private final BenchmarkController controller;
+
+  public DistributedWorker(String host, int port, BenchmarkController controller) {
+    this.host = host;
+    this.port = port;
+    this.controller = controller;
+  }
+
+  // Waits for the coordinator to come up, so workers can be launched before or after it
+  private Socket connect() throws InterruptedException {
+    while (true) {
+      try {
+        return new Socket(host, port);
+      } catch (ConnectException e) {
+        logger.info("Coordinator {}:{} not available yet, retrying", host, port);
+        Thread.sleep(1000);
+      } catch (IOException e) {
+        logger.error("Unable to connect to coordinator", e);
+        System.exit(1);
+      }
+    }
+  }
+
+  public void run() throws IOException, InterruptedException {
+    controller.connectToMongoDB();
+    try (DistributedCoordinator.Connection coordinator =
+        new DistributedCoordinator.Connection(connect())) {
+      coordinator.send(new Document("type", "hello"));
+      logger.info("Connected to coordinator {}:{}", host, port);
+
+      while (true) {
+        Document command = coordinator.receive();
+        String type = command.getString("type");
+        if ("shutdown".equals(type)) {
+          logger.info("Coordinator has finished - shutting down");
+          return;
+        }
+        if (!"run".equals(type)) {
+          logger.error("Unknown command {}", command.toJson());
+          continue;
+        }
+        try {
+          coordinator.send(runShare(command));
+        } catch (Exception e) {
+          logger.error("Run failed", e);
+          coordinator.send(new Document("type", "error").append("message", e.toString()));
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Document runShare(Document command) throws Exception {
+    Document testConfig = command.get("testConfig", Document.class);
+    int localThreads = command.getInteger("localThreads");
+    int threadOffset = command.getInteger("threadOffset");
+    int totalThreads = command.getInteger("totalThreads");
+    boolean measured = command.getBoolean("measured");
+    Class<BaseMongoTest> testClass =
+        (Class<BaseMongoTest>) Class.forName(testConfig.getString("testClassName"));
+    ConcurrentHashMap<String, Object> testReturnInfo = measured ? new ConcurrentHashMap<>() : null;
+    ExecutorService executorService = controller.createExecutor(testConfig, localThreads);
+    // Build the workers while waiting for the start time rather than after it
+    RunContext runContext = controller.newRunContext(testConfig, testReturnInfo);
+    List<BaseMongoTest> workers =
+        controller.createWorkers(
+            testConfig,
+            testClass,
+            localThreads,
+            threadOffset,
+            totalThreads,
+            testReturnInfo,
+            runContext);
+
+    long wait = command.getLong("startAtMillis") - System.currentTimeMillis();
+    if (wait > 0) {
+      Thread.sleep(wait);
+    } else {
+      logger.warn("Started {}ms after the coordinated start time", -wait);
+    }
+    logger.info(
+        "Running threads {} to {} of {} {}",
+        threadOffset,
+        threadOffset + localThreads - 1,
+        totalThreads,
+        measured ? "" : "(warmup)");
+    LatencyHistogram latency =
+        controller.runWorkers(testConfig, workers, runContext, executorService, testReturnInfo);
+
+    Document info = testReturnInfo == null ? new Document() : new Document(testReturnInfo);
+    return new Document("type", "result")
+        .append("testReturnInfo", info)
+        .append("latency", latency.toDocument());
+  }
+}
@@ -1,9 +1,11 @@
 package com.mongodb.solcon;
 
 import com.mongodb.MongoClientSettings;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.Random;
-import java.util.UUID;
+import java.util.SplittableRandom;
 import org.bson.*;
 import org.bson.codecs.Codec;
 import org.bson.codecs.EncoderContext;
@@ -13,36 +15,71 @@ import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/* Generates the synthetic documents for the tests. This is on the hot path of every insert test,
+so it writes BSON by hand into a per-factory slab rather than going through a BsonWriter. Field
+names are encoded once, string values are copied straight from the shared TextCorpus and each
+document is handed out as a RawBsonDocument over its piece of the slab. When a slab fills up a
+new one is started - documents already handed out keep the old one alive until they are done
+with, so the only allocation per document is the RawBsonDocument itself and its share of a slab.
+A factory belongs to one thread. */
+
 public class DocumentFactory {
   private static final Logger logger = LoggerFactory.getLogger(DocumentFactory.class);
+  // Codec registry that knows how to encode all default types, for uncommon extra fields
+  private static final CodecRegistry REGISTRY = MongoClientSettings.getDefaultCodecRegistry();
+  private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+  private static final int SLAB_SIZE = 1024 * 1024;
+  private static final int MAX_CUSTOMERS = 20000;
+  private static final byte[] ID = cstring("_id");
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
   final int MEANSTRINGLENGTH = 32;
-  final int SAMPLESTRINGLENGTH = 1024 * 1024;
-  String bigrandomString;
+  final TextCorpus corpus = TextCorpus.get();
   String idType;
   int docsizeBytes;
   int maxFieldsPerObject;
   long threadNo;
-  HashMap<Integer, Integer> map = new HashMap<>();
-  Random random;
+  int[] customerOneUp; // Only for BUSINESS_ID, made on first use
+  SplittableRandom random;
+  final DocumentShape shape;
+
+  // Pre-encoded names, index fNo, grown on demand
+  private byte[][] intNames = new byte[0][];
+  private byte[][] dateNames = new byte[0][];
+  private byte[][] stringNames = new byte[0][];
+  private final HashMap<String, byte[]> extraNames = new HashMap<>();
+
+  private final int slabSize;
+  private byte[] slab = new byte[0]; // The first real one on the first document
+  private ByteBuffer slabBuffer = ByteBuffer.wrap(slab); // Same bytes, for ObjectId
+  private int docStart;
+  private int pos;
+  private BasicOutputBuffer fallbackBuffer;
 
   public DocumentFactory(long threadNo, String idType, int docsizeBytes, int maxFieldsPerObject) {
+    this(threadNo, idType, docsizeBytes, maxFieldsPerObject, null);
+  }
+
+  // With a shape the documents are laid out as it says, see DocumentShape
+  public DocumentFactory(
+      long threadNo,
+      String idType,
+      int docsizeBytes,
+      int maxFieldsPerObject,
+      DocumentShape shape) {
+    this.shape = shape;
     this.idType = idType;
     this.docsizeBytes = docsizeBytes;
     this.maxFieldsPerObject = maxFieldsPerObject;
     this.threadNo = threadNo;
-    this.random = new Random(threadNo);
-    bigrandomString = Utils.BigRandomText(SAMPLESTRINGLENGTH);
+    this.random = RandomStreams.forThread(RandomStreams.DATA_SEED, threadNo);
+    // Not allocated yet - most workers build a factory and many never make a document
+    this.slabSize = Math.max(SLAB_SIZE, docsizeBytes * 4);
   }
 
-  private static byte[] asBytes(UUID uuid) {
-    long mostSignificantBits = uuid.getMostSignificantBits();
-    long leastSignificantBits = uuid.getLeastSignificantBits();
-    byte[] bytes = new byte[16];
-
-    for (int i = 0; i < 8; i++) {
-      bytes[i] = (byte) (mostSignificantBits >>> (8 * (7 - i)));
-      bytes[8 + i] = (byte) (leastSignificantBits >>> (8 * (7 - i)));
-    }
+  private static byte[] cstring(String name) {
+    byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+    byte[] bytes = new byte[encoded.length + 1]; // Trailing zero
+    System.arraycopy(encoded, 0, bytes, 0, encoded.length);
     return bytes;
   }
 
@@ -51,67 +88,338 @@ public class DocumentFactory {
   }
 
   public RawBsonDocument createDocument(Document extraFields) {
+    docStart = pos;
+    reserve(4);
+    pos += 4; // Length, filled in at the end
 
-    BasicOutputBuffer buffer = new BasicOutputBuffer();
-    BsonWriter writer = new BsonBinaryWriter(buffer);
-    int fNo = 1;
-
-    writer.writeStartDocument();
     if (idType != null && !(extraFields != null && extraFields.containsKey("_id"))) {
+      writeId();
+    }
 
-      switch (idType) {
-        case "UUID":
-          UUID uuid = UUID.randomUUID();
-          BsonBinary bsonBinary = new BsonBinary(BsonBinarySubType.UUID_STANDARD, asBytes(uuid));
-          writer.writeBinaryData("_id", bsonBinary);
-          break;
-        case "BUSINESS_ID":
-          int cust = random.nextInt(20000);
-          int custOneUp = map.getOrDefault(cust, 0);
-          map.put(cust, custOneUp + 1);
-          String busId = String.format("ACC%05d_%06x%03x", cust, custOneUp, threadNo);
-          writer.writeString("_id", busId);
-          break;
-        case "OBJECT_ID":
-          writer.writeObjectId("_id", new ObjectId());
-          break;
-        default:
-          logger.error("Unknown idType: " + idType);
-          writer.writeString("_id", "ERROR");
-          break;
+    if (extraFields != null) {
+      for (var entry : extraFields.entrySet()) {
+        writeExtraField(entry.getKey(), entry.getValue());
       }
     }
 
-    if (extraFields != null) {
-      // Codec registry that knows how to encode all default types
-      CodecRegistry registry = MongoClientSettings.getDefaultCodecRegistry();
+    if (shape != null) {
+      writeShaped();
+    } else {
+      int fNo = 1;
+      while (pos - docStart < docsizeBytes) {
+        if (fNo >= intNames.length) {
+          growNames(fNo);
+        }
+        writeName(BsonType.INT32, intNames[fNo], 4);
+        putInt(random.nextInt(100_000));
+        writeName(BsonType.DATE_TIME, dateNames[fNo], 8);
+        // TODO Bound these to sensible values
+        putLong(1754917200011L + random.nextLong(10_000_000_000L));
+        int stringLength = random.nextInt(MEANSTRINGLENGTH) + 1;
+        int offset = random.nextInt(corpus.size() - MEANSTRINGLENGTH);
+        writeName(BsonType.STRING, stringNames[fNo], 4 + stringLength + 1);
+        putInt(stringLength + 1);
+        corpus.copyTo(offset, slab, pos, stringLength);
+        pos += stringLength;
+        slab[pos++] = 0;
+        fNo++;
+      }
+    }
 
-      EncoderContext ctx = EncoderContext.builder().build();
+    reserve(1);
+    slab[pos++] = 0;
+    int length = pos - docStart;
+    putIntAt(docStart, length);
+    return new RawBsonDocument(slab, docStart, length);
+  }
 
-      // Append each entry from Document with the proper type
-      for (var entry : extraFields.entrySet()) {
-        writer.writeName(entry.getKey());
-        @SuppressWarnings("unchecked")
-        Codec<Object> codec = (Codec<Object>) registry.get(entry.getValue().getClass());
-        codec.encode(writer, entry.getValue(), ctx);
+  // Top level fields in the order the shape gives until the document is big enough
+  private void writeShaped() {
+    DocumentShape.Field[] fields = shape.topLevelFields(0);
+    int f = 0;
+    while (pos - docStart < docsizeBytes) {
+      if (f >= fields.length) {
+        fields = shape.topLevelFields(f + 1);
       }
+      writeField(fields[f].type, fields[f].name, 0);
+      f++;
+    }
+  }
+
+  // level is the depth of the object the field is in, the top level being 0
+  private void writeField(DocumentShape.FieldType type, byte[] name, int level) {
+    switch (type) {
+      case INT:
+        writeName(BsonType.INT32, name, 4);
+        putInt(random.nextInt(100_000));
+        break;
+      case LONG:
+        writeName(BsonType.INT64, name, 8);
+        putLong(random.nextLong(10_000_000_000L));
+        break;
+      case DATE:
+        writeName(BsonType.DATE_TIME, name, 8);
+        putLong(1754917200011L + random.nextLong(10_000_000_000L));
+        break;
+      case STRING:
+        int stringLength = shape.stringLength(random);
+        int offset = random.nextInt(corpus.size() - stringLength);
+        writeName(BsonType.STRING, name, 4 + stringLength + 1);
+        putInt(stringLength + 1);
+        corpus.copyTo(offset, slab, pos, stringLength);
+        pos += stringLength;
+        slab[pos++] = 0;
+        break;
+      case DOUBLE:
+        writeName(BsonType.DOUBLE, name, 8);
+        putLong(Double.doubleToRawLongBits(random.nextDouble() * 100_000));
+        break;
+      case DECIMAL:
+        // A money value, cents with an exponent of -2 in the Decimal128 BID encoding
+        writeName(BsonType.DECIMAL128, name, 16);
+        putLong(random.nextInt(10_000_000));
+        putLong((long) (6176 - 2) << 49);
+        break;
+      case BINARY:
+        int binaryLength = shape.binaryLength;
+        writeName(BsonType.BINARY, name, 4 + 1 + binaryLength);
+        putInt(binaryLength);
+        slab[pos++] = BsonBinarySubType.BINARY.getValue();
+        for (int i = 0; i < binaryLength; i += 8) {
+          long bits = random.nextLong();
+          for (int b = 0; b < 8 && i + b < binaryLength; b++) {
+            slab[pos++] = (byte) (bits >>> (8 * b));
+          }
+        }
+        break;
+      case BOOL:
+        writeName(BsonType.BOOLEAN, name, 1);
+        slab[pos++] = (byte) (random.nextBoolean() ? 1 : 0);
+        break;
+      case ARRAY:
+        writeName(BsonType.ARRAY, name, 0);
+        int array = beginContainer();
+        int arrayLength = shape.arrayLength(random);
+        DocumentShape.FieldType elementType = shape.arrayElementType(level);
+        for (int i = 0; i < arrayLength; i++) {
+          writeField(elementType, shape.indexName(i), level);
+        }
+        endContainer(array);
+        break;
+      case OBJECT:
+        writeName(BsonType.DOCUMENT, name, 0);
+        int object = beginContainer();
+        for (DocumentShape.Field field : shape.objectFields(level + 1)) {
+          writeField(field.type, field.name, level + 1);
+        }
+        endContainer(object);
+        break;
+    }
+  }
+
+  // Offsets are from docStart as reserve() can move the document to a new slab
+  private int beginContainer() {
+    reserve(4);
+    int at = pos - docStart;
+    pos += 4;
+    return at;
+  }
+
+  private void endContainer(int at) {
+    reserve(1);
+    slab[pos++] = 0;
+    putIntAt(docStart + at, pos - docStart - at);
+  }
+
+  private void writeId() {
+    switch (idType) {
+      case "UUID":
+        // A version 4 UUID, but from the seeded stream so the ids repeat like the rest of the data
+        long mostSig = (random.nextLong() & ~0xF000L) | 0x4000L;
+        long leastSig = (random.nextLong() & ~(0xC000L << 48)) | (0x8000L << 48);
+        writeName(BsonType.BINARY, ID, 4 + 1 + 16);
+        putInt(16);
+        slab[pos++] = BsonBinarySubType.UUID_STANDARD.getValue();
+        putLongBigEndian(mostSig);
+        putLongBigEndian(leastSig);
+        break;
+      case "BUSINESS_ID":
+        // ACC%05d_%06x%03x - customer, that customer's one up number, thread
+        if (customerOneUp == null) {
+          customerOneUp = new int[MAX_CUSTOMERS];
+        }
+        int cust = random.nextInt(MAX_CUSTOMERS);
+        int custOneUp = customerOneUp[cust]++;
+        int length =
+            3
+                + digits(cust, 10, 5)
+                + 1
+                + digits(custOneUp, 16, 6)
+                + digits(threadNo, 16, 3);
+        writeName(BsonType.STRING, ID, 4 + length + 1);
+        putInt(length + 1);
+        slab[pos++] = 'A';
+        slab[pos++] = 'C';
+        slab[pos++] = 'C';
+        putDigits(cust, 10, 5);
+        slab[pos++] = '_';
+        putDigits(custOneUp, 16, 6);
+        putDigits(threadNo, 16, 3);
+        slab[pos++] = 0;
+        break;
+      case "OBJECT_ID":
+        writeName(BsonType.OBJECT_ID, ID, 12);
+        new ObjectId().putToByteBuffer(slabBuffer.position(pos));
+        pos += 12;
+        break;
+      default:
+        logger.error("Unknown idType: " + idType);
+        writeExtraField("_id", "ERROR");
+        break;
+    }
+  }
+
+  // The types that turn up in extraFields are written directly, anything else goes via a codec
+  private void writeExtraField(String key, Object value) {
+    byte[] name = extraNames.computeIfAbsent(key, DocumentFactory::cstring);
+    if (value instanceof Integer) {
+      writeName(BsonType.INT32, name, 4);
+      putInt((Integer) value);
+    } else if (value instanceof Long) {
+      writeName(BsonType.INT64, name, 8);
+      putLong((Long) value);
+    } else if (value instanceof Double) {
+      writeName(BsonType.DOUBLE, name, 8);
+      putLong(Double.doubleToRawLongBits((Double) value));
+    } else if (value instanceof Boolean) {
+      writeName(BsonType.BOOLEAN, name, 1);
+      slab[pos++] = (byte) ((Boolean) value ? 1 : 0);
+    } else if (value instanceof Date) {
+      writeName(BsonType.DATE_TIME, name, 8);
+      putLong(((Date) value).getTime());
+    } else if (value instanceof ObjectId) {
+      writeName(BsonType.OBJECT_ID, name, 12);
+      ((ObjectId) value).putToByteBuffer(slabBuffer.position(pos));
+      pos += 12;
+    } else if (value instanceof String) {
+      byte[] encoded = ((String) value).getBytes(StandardCharsets.UTF_8);
+      writeName(BsonType.STRING, name, 4 + encoded.length + 1);
+      putInt(encoded.length + 1);
+      System.arraycopy(encoded, 0, slab, pos, encoded.length);
+      pos += encoded.length;
+      slab[pos++] = 0;
+    } else {
+      writeEncoded(key, value);
     }
+  }
 
-    while (buffer.size() < docsizeBytes) {
-
-      writer.writeInt32("intfield" + fNo, random.nextInt(100_000));
-      writer.writeDateTime(
-          ("datefield" + fNo), 1754917200011L + random.nextLong(10_000_000_000L)); // TODO Bound
-      // these to
-      // sensible values
-      int stringLength = random.nextInt(MEANSTRINGLENGTH) + 1;
-      int offset = random.nextInt(SAMPLESTRINGLENGTH - MEANSTRINGLENGTH);
-      String example = bigrandomString.substring(offset, offset + stringLength);
-      writer.writeString("stringfield" + fNo, example);
-      fNo++;
+  // Encodes {key: value} with the driver and copies the element out of it
+  private void writeEncoded(String key, Object value) {
+    if (fallbackBuffer == null) {
+      fallbackBuffer = new BasicOutputBuffer();
+    }
+    fallbackBuffer.truncateToPosition(0);
+    BsonWriter writer = new BsonBinaryWriter(fallbackBuffer);
+    writer.writeStartDocument();
+    writer.writeName(key);
+    if (value == null) {
+      writer.writeNull();
+    } else {
+      @SuppressWarnings("unchecked")
+      Codec<Object> codec = (Codec<Object>) REGISTRY.get(value.getClass());
+      codec.encode(writer, value, ENCODER_CONTEXT);
     }
     writer.writeEndDocument();
+    int elementLength = fallbackBuffer.getPosition() - 5; // Less the length and trailing zero
+    reserve(elementLength);
+    System.arraycopy(fallbackBuffer.getInternalBuffer(), 4, slab, pos, elementLength);
+    pos += elementLength;
+  }
+
+  private void writeName(BsonType type, byte[] name, int valueLength) {
+    reserve(1 + name.length + valueLength);
+    slab[pos++] = (byte) type.getValue();
+    System.arraycopy(name, 0, slab, pos, name.length);
+    pos += name.length;
+  }
+
+  private void growNames(int fNo) {
+    int size = Math.max(fNo + 1, intNames.length * 2);
+    byte[][] ints = new byte[size][];
+    byte[][] dates = new byte[size][];
+    byte[][] strings = new byte[size][];
+    System.arraycopy(intNames, 0, ints, 0, intNames.length);
+    System.arraycopy(dateNames, 0, dates, 0, dateNames.length);
+    System.arraycopy(stringNames, 0, strings, 0, stringNames.length);
+    for (int n = intNames.length; n < size; n++) {
+      ints[n] = cstring("intfield" + n);
+      dates[n] = cstring("datefield" + n);
+      strings[n] = cstring("stringfield" + n);
+    }
+    intNames = ints;
+    dateNames = dates;
+    stringNames = strings;
+  }
+
+  // Makes room for n more bytes, moving the document so far onto a new slab if need be
+  private void reserve(int n) {
+    if (pos + n <= slab.length) {
+      return;
+    }
+    byte[] old = slab;
+    int oldStart = docStart;
+    int soFar = pos - docStart;
+    newSlab(Math.max(slabSize, (soFar + n) * 2));
+    System.arraycopy(old, oldStart, slab, 0, soFar);
+    pos = soFar;
+  }
+
+  private void newSlab(int size) {
+    slab = new byte[size];
+    slabBuffer = ByteBuffer.wrap(slab);
+    docStart = 0;
+    pos = 0;
+  }
 
-    return new RawBsonDocument(buffer.toByteArray());
+  private void putInt(int value) {
+    putIntAt(pos, value);
+    pos += 4;
+  }
+
+  private void putIntAt(int at, int value) {
+    slab[at] = (byte) value;
+    slab[at + 1] = (byte) (value >>> 8);
+    slab[at + 2] = (byte) (value >>> 16);
+    slab[at + 3] = (byte) (value >>> 24);
+  }
+
+  private void putLong(long value) {
+    for (int i = 0; i < 8; i++) {
+      slab[pos++] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  private void putLongBigEndian(long value) {
+    for (int i = 7; i >= 0; i--) {
+      slab[pos++] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  // Number of characters value takes when zero padded to width, like %0<width>d or %0<width>x
+  private static int digits(long value, int radix, int width) {
+    int n = 1;
+    while ((value /= radix) > 0) {
+      n++;
+    }
+    return Math.max(n, width);
+  }
+
+  private void putDigits(long value, int radix, int width) {
+    int n = digits(value, radix, width);
+    for (int i = pos + n - 1; i >= pos; i--) {
+      slab[i] = HEX[(int) (value % radix)];
+      value /= radix;
+    }
+    pos += n;
   }
 }
@@ -0,0 +1,268 @@
+package com.mongodb.solcon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.random.RandomGenerator;
+import org.bson.Document;
+
+/* A compiled plan for the layout of generated documents, from the "shape" section of a test or
+variant. Without one DocumentFactory writes the original flat run of int, date and string fields.
+
+    "shape": {
+      "depth": 2,                 // How deep objects can nest, 0 is flat
+      "fieldsPerObject": 12,      // Fields in each nested object, defaults to maxFieldsPerObject
+      "types": { "int": 3, "date": 1, "string": 3, "double": 1, "decimal": 1,
+                 "binary": 1, "bool": 1, "array": 1, "object": 1 },
+      "string": { "minLength": 1, "maxLength": 32 },
+      "binary": { "length": 16 },
+      "array": { "of": "int", "distribution": "uniform", "minLength": 0, "maxLength": 10 }
+    }
+
+The types are relative weights, spread evenly over each object's fields so every object at the
+same level has the same fields in the same order - only the values, string and array lengths
+change from document to document. Names are the type and a count of that type within the
+object, so the top level still has intfield1, intfield2 ... The top level keeps adding
+fields until the document reaches docSizeKB. An object at the deepest level, or an array of
+objects there, gets the next type that is not an object. Array lengths can be "uniform" between
+minLength and maxLength, "geometric" around meanLength (capped at maxLength) or "fixed" at
+length.
+
+The plan is compiled once per distinct spec and shared by every thread. */
+
+public final class DocumentShape {
+  public enum FieldType {
+    INT,
+    LONG,
+    DATE,
+    STRING,
+    DOUBLE,
+    DECIMAL,
+    BINARY,
+    BOOL,
+    ARRAY,
+    OBJECT;
+
+    final String prefix = name().toLowerCase();
+  }
+
+  public enum LengthDistribution {
+    UNIFORM,
+    GEOMETRIC,
+    FIXED
+  }
+
+  /** One field of an object, in the order it is written. */
+  public static final class Field {
+    public final FieldType type;
+    public final byte[] name; // Encoded with its trailing zero
+
+    Field(FieldType type, String name) {
+      this.type = type;
+      this.name = cstring(name);
+    }
+  }
+
+  private static final Map<Document, DocumentShape> compiled = new ConcurrentHashMap<>();
+
+  final int depth;
+  final int fieldsPerObject;
+  final int minStringLength;
+  final int maxStringLength;
+  final int binaryLength;
+  final FieldType arrayOf;
+  final LengthDistribution arrayDistribution;
+  final int minArrayLength;
+  final int maxArrayLength;
+  final double meanArrayLength;
+  private final FieldType[] cycle; // Weighted order of types, repeated
+  private final Field[][] levels; // Fields of nested objects at each level, 1..depth
+  private volatile Field[] topLevel;
+  private final byte[][] indexNames; // "0", "1" ... for array elements
+
+  private DocumentShape(Document spec, int defaultFieldsPerObject) {
+    depth = intValue(spec, "depth", 0);
+    fieldsPerObject = Math.max(1, intValue(spec, "fieldsPerObject", defaultFieldsPerObject));
+
+    Document string = subDocument(spec, "string");
+    minStringLength = Math.max(0, intValue(string, "minLength", 1));
+    maxStringLength =
+        Math.min(
+            TextCorpus.SIZE - 1, Math.max(minStringLength, intValue(string, "maxLength", 32)));
+    binaryLength = intValue(subDocument(spec, "binary"), "length", 16);
+
+    Document array = subDocument(spec, "array");
+    String of = array.getString("of");
+    arrayOf = of == null ? FieldType.INT : FieldType.valueOf(of.toUpperCase());
+    if (arrayOf == FieldType.ARRAY) {
+      throw new IllegalArgumentException("Arrays of arrays are not supported in a shape");
+    }
+    arrayDistribution =
+        LengthDistribution.valueOf(
+            array.getString("distribution") == null
+                ? "UNIFORM"
+                : array.getString("distribution").toUpperCase());
+    minArrayLength = Math.max(0, intValue(array, "minLength", 0));
+    meanArrayLength = doubleValue(array, "meanLength", 4);
+    int length = intValue(array, "length", 4);
+    maxArrayLength =
+        arrayDistribution == LengthDistribution.FIXED
+            ? length
+            : Math.max(minArrayLength, intValue(array, "maxLength", 10));
+
+    cycle = weightedCycle(subDocument(spec, "types"));
+    levels = new Field[depth + 1][];
+    for (int level = 1; level <= depth; level++) {
+      levels[level] = fields(level, fieldsPerObject);
+    }
+    topLevel = fields(0, fieldsPerObject);
+    indexNames = new byte[maxArrayLength][];
+    for (int i = 0; i < maxArrayLength; i++) {
+      indexNames[i] = cstring(Integer.toString(i));
+    }
+  }
+
+  /** The shape for this test and variant, the variant's overriding the test's, or null. */
+  public static DocumentShape fromConfig(Document testConfig, int defaultFieldsPerObject) {
+    Document spec = null;
+    Document variant = testConfig.get("variant", Document.class);
+    if (variant != null) {
+      spec = variant.get("shape", Document.class);
+    }
+    if (spec == null) {
+      spec = testConfig.get("shape", Document.class);
+    }
+    if (spec == null) {
+      return null;
+    }
+    Document key = new Document(spec).append("defaultFieldsPerObject", defaultFieldsPerObject);
+    return compiled.computeIfAbsent(key, k -> new DocumentShape(k, defaultFieldsPerObject));
+  }
+
+  private static Document subDocument(Document spec, String key) {
+    Document sub = spec.get(key, Document.class);
+    return sub == null ? new Document() : sub;
+  }
+
+  private static int intValue(Document doc, String key, int defaultValue) {
+    Object value = doc.get(key);
+    return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+  }
+
+  private static double doubleValue(Document doc, String key, double defaultValue) {
+    Object value = doc.get(key);
+    return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+  }
+
+  static byte[] cstring(String name) {
+    byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+    byte[] bytes = new byte[encoded.length + 1]; // Trailing zero
+    System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+    return bytes;
+  }
+
+  // Smooth weighted round robin, so int:3 string:1 gives int int string int not int int int string
+  private static FieldType[] weightedCycle(Document types) {
+    List<FieldType> kinds = new ArrayList<>();
+    List<Integer> weights = new ArrayList<>();
+    if (types.isEmpty()) {
+      types = new Document("int", 1).append("date", 1).append("string", 1);
+    }
+    int total = 0;
+    for (Map.Entry<String, Object> entry : types.entrySet()) {
+      int weight = ((Number) entry.getValue()).intValue();
+      if (weight > 0) {
+        kinds.add(FieldType.valueOf(entry.getKey().toUpperCase()));
+        weights.add(weight);
+        total += weight;
+      }
+    }
+    if (total == 0) {
+      throw new IllegalArgumentException("A shape needs at least one type with a weight");
+    }
+    FieldType[] cycle = new FieldType[total];
+    int[] current = new int[kinds.size()];
+    for (int n = 0; n < total; n++) {
+      int best = 0;
+      for (int k = 0; k < kinds.size(); k++) {
+        current[k] += weights.get(k);
+        if (current[k] > current[best]) {
+          best = k;
+        }
+      }
+      current[best] -= total;
+      cycle[n] = kinds.get(best);
+    }
+    return cycle;
+  }
+
+  // The first n fields of an object at this level
+  private Field[] fields(int level, int n) {
+    Field[] fields = new Field[n];
+    int[] perType = new int[FieldType.values().length];
+    for (int f = 0; f < n; f++) {
+      FieldType type = typeAt(level, f);
+      fields[f] = new Field(type, type.prefix + "field" + (++perType[type.ordinal()]));
+    }
+    return fields;
+  }
+
+  private FieldType typeAt(int level, int position) {
+    for (int i = 0; i < cycle.length; i++) {
+      FieldType type = cycle[(position + i) % cycle.length];
+      if (type != FieldType.OBJECT || level < depth) {
+        return type;
+      }
+    }
+    return FieldType.INT; // Only objects were asked for and we are as deep as we can go
+  }
+
+  /** Fields of a nested object at level 1 to depth. */
+  public Field[] objectFields(int level) {
+    return levels[level];
+  }
+
+  /** At least the first n top level fields, the document keeps going until it is big enough. */
+  public Field[] topLevelFields(int n) {
+    Field[] fields = topLevel;
+    if (fields.length < n) {
+      synchronized (this) {
+        fields = topLevel;
+        if (fields.length < n) {
+          fields = fields(0, Math.max(n, fields.length * 2));
+          topLevel = fields;
+        }
+      }
+    }
+    return fields;
+  }
+
+  public FieldType arrayElementType(int level) {
+    // Array elements are one level down, same as an object would be
+    return arrayOf == FieldType.OBJECT && level >= depth ? FieldType.INT : arrayOf;
+  }
+
+  public int stringLength(RandomGenerator random) {
+    return minStringLength + random.nextInt(maxStringLength - minStringLength + 1);
+  }
+
+  public int arrayLength(RandomGenerator random) {
+    switch (arrayDistribution) {
+      case FIXED:
+        return maxArrayLength;
+      case GEOMETRIC:
+        // Failures before a success, with p chosen to give the mean
+        double p = 1.0 / (Math.max(0, meanArrayLength - minArrayLength) + 1);
+        int extra = (int) (Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+        return Math.min(maxArrayLength, minArrayLength + extra);
+      default:
+        return minArrayLength + random.nextInt(maxArrayLength - minArrayLength + 1);
+    }
+  }
+
+  public byte[] indexName(int index) {
+    return indexNames[index];
+  }
+}
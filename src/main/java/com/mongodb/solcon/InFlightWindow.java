@@ -0,0 +1,87 @@
+package com.mongodb.solcon;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Lets one worker thread keep up to maxInFlight reactive-streams operations outstanding at
+once. submit() blocks only when the window is full, and each operation releases its slot and
+records its latency on whichever driver thread completes it. */
+
+public class InFlightWindow {
+  private static final Logger logger = LoggerFactory.getLogger(InFlightWindow.class);
+  private final Semaphore permits;
+  private final int maxInFlight;
+  private final BaseMongoTest owner;
+  private final AtomicLong errors = new AtomicLong();
+
+  InFlightWindow(BaseMongoTest owner, int maxInFlight) {
+    this.owner = owner;
+    this.maxInFlight = maxInFlight;
+    this.permits = new Semaphore(maxInFlight);
+  }
+
+  public <T> void submit(Publisher<T> operation, long startNanos) {
+    submit(operation, startNanos, null, null);
+  }
+
+  /**
+   * Subscribes to the operation once a slot is free. onItem sees every result, onComplete gets
+   * the number of results once the operation has finished successfully. Either may be null.
+   */
+  public <T> void submit(
+      Publisher<T> operation, long startNanos, Consumer<T> onItem, LongConsumer onComplete) {
+    permits.acquireUninterruptibly();
+    operation.subscribe(
+        new Subscriber<T>() {
+          long items;
+
+          @Override
+          public void onSubscribe(Subscription s) {
+            s.request(Long.MAX_VALUE);
+          }
+
+          @Override
+          public void onNext(T item) {
+            items++;
+            if (onItem != null) {
+              onItem.accept(item);
+            }
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            errors.incrementAndGet();
+            logger.error("Async operation failed: {}", t.getMessage());
+            owner.recordLatency(startNanos);
+            owner.recordError();
+            permits.release();
+          }
+
+          @Override
+          public void onComplete() {
+            owner.recordLatency(startNanos);
+            if (onComplete != null) {
+              onComplete.accept(items);
+            }
+            permits.release();
+          }
+        });
+  }
+
+  /** Waits until every submitted operation has completed. */
+  public void awaitAll() {
+    permits.acquireUninterruptibly(maxInFlight);
+    permits.release(maxInFlight);
+  }
+
+  public long getErrorCount() {
+    return errors.get();
+  }
+}
@@ -0,0 +1,251 @@
+package com.mongodb.solcon;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.random.RandomGenerator;
+import org.bson.Document;
+
+/* Picks which key the next operation works on, from a range of count keys starting at lowest.
+Chosen with "keyDistribution" in the variant or at the top level of the test, either just the
+type or a document with the type and its settings:
+
+    "keyDistribution": "uniform"        Every key equally likely - the default
+    "keyDistribution": { "type": "zipfian", "theta": 0.99 }
+                                        Low keys much more popular than high ones, theta (0 to
+                                        1, default 0.99) sets how much
+    "keyDistribution": { "type": "scrambledZipfian", "theta": 0.99 }
+                                        Zipfian popularity but the popular keys spread over the
+                                        range rather than all at the start
+    "keyDistribution": { "type": "hotspot", "hotKeys": 0.2, "hotOps": 0.8 }
+                                        hotOps of the operations on the first hotKeys of the keys
+    "keyDistribution": { "type": "latest", "theta": 0.99 }
+                                        Zipfian counting down from the newest key, tests that add
+                                        keys tell it with inserted()
+    "keyDistribution": "sequential"     Each key in turn, across all the workers, wrapping round
+
+Every draw is O(1). Zipfian uses the method from Gray et al, "Quickly Generating Billion-Record
+Synthetic Databases", which needs zeta(n, theta) up front - that is computed once per range and
+theta, exactly for the first million terms and by an integral for the rest. Sequential and
+latest keep shared state, so one instance should serve all the workers of a run. */
+
+public abstract class KeyDistribution {
+  private static final long EXACT_ZETA_TERMS = 1_000_000;
+  private static final Map<String, Double> zetaCache = new ConcurrentHashMap<>();
+
+  protected final long lowest;
+  protected final long count;
+
+  protected KeyDistribution(long lowest, long count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("A key distribution needs at least one key");
+    }
+    this.lowest = lowest;
+    this.count = count;
+  }
+
+  /** The next key, from lowest to lowest + count - 1 (or beyond for latest). */
+  public abstract long next(RandomGenerator random);
+
+  /** A key above the range has been added - only latest takes any notice. */
+  public void inserted(long key) {}
+
+  /** The variant's keyDistribution, or the test's, as a document with at least a type. */
+  public static Document specFromConfig(Document testConfig) {
+    Object spec = null;
+    Document variant = testConfig.get("variant", Document.class);
+    if (variant != null) {
+      spec = variant.get("keyDistribution");
+    }
+    if (spec == null) {
+      spec = testConfig.get("keyDistribution");
+    }
+    if (spec instanceof String) {
+      return new Document("type", spec);
+    }
+    if (spec instanceof Document) {
+      return (Document) spec;
+    }
+    return new Document("type", "uniform");
+  }
+
+  public static KeyDistribution fromConfig(Document testConfig, long lowest, long count) {
+    return create(specFromConfig(testConfig), lowest, count);
+  }
+
+  public static KeyDistribution create(Document spec, long lowest, long count) {
+    String type = spec.getString("type");
+    double theta = doubleValue(spec, "theta", 0.99);
+    switch (type == null ? "uniform" : type.toLowerCase()) {
+      case "uniform":
+        return new Uniform(lowest, count);
+      case "zipfian":
+        return new Zipfian(lowest, count, theta);
+      case "scrambledzipfian":
+        return new ScrambledZipfian(lowest, count, theta);
+      case "hotspot":
+        return new Hotspot(
+            lowest, count, doubleValue(spec, "hotKeys", 0.2), doubleValue(spec, "hotOps", 0.8));
+      case "latest":
+        return new Latest(lowest, count, theta);
+      case "sequential":
+        return new Sequential(lowest, count);
+      default:
+        throw new IllegalArgumentException("Unknown keyDistribution " + type);
+    }
+  }
+
+  private static double doubleValue(Document spec, String key, double defaultValue) {
+    Object value = spec.get(key);
+    return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+  }
+
+  // A whole number in [0, bound) - nextInt where it will do so uniform matches what went before
+  static long below(RandomGenerator random, long bound) {
+    return bound <= Integer.MAX_VALUE ? random.nextInt((int) bound) : random.nextLong(bound);
+  }
+
+  static double zeta(long n, double theta) {
+    return zetaCache.computeIfAbsent(
+        n + ":" + theta,
+        k -> {
+          long exact = Math.min(n, EXACT_ZETA_TERMS);
+          double sum = 0;
+          for (long i = 1; i <= exact; i++) {
+            sum += 1 / Math.pow(i, theta);
+          }
+          if (n > exact) {
+            // Euler-Maclaurin: the integral from exact to n plus the end correction
+            double m = exact;
+            sum +=
+                (Math.pow(n, 1 - theta) - Math.pow(m, 1 - theta)) / (1 - theta)
+                    + (Math.pow(n, -theta) - Math.pow(m, -theta)) / 2;
+          }
+          return sum;
+        });
+  }
+
+  static class Uniform extends KeyDistribution {
+    Uniform(long lowest, long count) {
+      super(lowest, count);
+    }
+
+    @Override
+    public long next(RandomGenerator random) {
+      return lowest + below(random, count);
+    }
+  }
+
+  static class Zipfian extends KeyDistribution {
+    private final double theta;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double twoThreshold; // 1 + 0.5^theta
+
+    Zipfian(long lowest, long count, double theta) {
+      super(lowest, count);
+      if (theta <= 0 || theta >= 1) {
+        throw new IllegalArgumentException("Zipfian theta must be between 0 and 1, not " + theta);
+      }
+      this.theta = theta;
+      zetan = zeta(count, theta);
+      alpha = 1 / (1 - theta);
+      eta = (1 - Math.pow(2.0 / count, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+      twoThreshold = 1 + Math.pow(0.5, theta);
+    }
+
+    // 0 is the most popular
+    long rank(RandomGenerator random) {
+      double u = random.nextDouble();
+      double uz = u * zetan;
+      if (uz < 1) {
+        return 0;
+      }
+      if (uz < twoThreshold && count > 1) {
+        return 1;
+      }
+      return Math.min(count - 1, (long) (count * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    @Override
+    public long next(RandomGenerator random) {
+      return lowest + rank(random);
+    }
+  }
+
+  static class ScrambledZipfian extends Zipfian {
+    ScrambledZipfian(long lowest, long count, double theta) {
+      super(lowest, count, theta);
+    }
+
+    @Override
+    public long next(RandomGenerator random) {
+      return lowest + Long.remainderUnsigned(fnv1a(rank(random)), count);
+    }
+
+    private static long fnv1a(long value) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < 8; i++) {
+        hash ^= value & 0xff;
+        hash *= 0x100000001b3L;
+        value >>>= 8;
+      }
+      return hash;
+    }
+  }
+
+  static class Hotspot extends KeyDistribution {
+    private final long hotCount;
+    private final double hotOps;
+
+    Hotspot(long lowest, long count, double hotKeys, double hotOps) {
+      super(lowest, count);
+      this.hotCount = Math.max(1, Math.min(count, (long) (count * hotKeys)));
+      this.hotOps = hotOps;
+    }
+
+    @Override
+    public long next(RandomGenerator random) {
+      if (hotCount == count || random.nextDouble() < hotOps) {
+        return lowest + below(random, hotCount);
+      }
+      return lowest + hotCount + below(random, count - hotCount);
+    }
+  }
+
+  static class Latest extends KeyDistribution {
+    private final Zipfian recency;
+    private final AtomicLong newest;
+
+    Latest(long lowest, long count, double theta) {
+      super(lowest, count);
+      // Popularity is by age over the first count keys, newer ones just move the window on
+      recency = new Zipfian(0, count, theta);
+      newest = new AtomicLong(lowest + count - 1);
+    }
+
+    @Override
+    public long next(RandomGenerator random) {
+      return newest.get() - recency.rank(random);
+    }
+
+    @Override
+    public void inserted(long key) {
+      newest.accumulateAndGet(key, Math::max);
+    }
+  }
+
+  static class Sequential extends KeyDistribution {
+    private final AtomicLong next = new AtomicLong();
+
+    Sequential(long lowest, long count) {
+      super(lowest, count);
+    }
+
+    @Override
+    public long next(RandomGenerator random) {
+      return lowest + Long.remainderUnsigned(next.getAndIncrement(), count);
+    }
+  }
+}
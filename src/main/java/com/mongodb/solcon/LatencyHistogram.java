@@ -0,0 +1,198 @@
+package com.mongodb.solcon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.bson.Document;
+
+/* Log-linear latency histogram in the style of HdrHistogram. Values under 64ns are counted
+exactly, above that every power of two is split into 32 linear sub-buckets so any recorded
+value is within ~3% of its bucket bound. Recording never allocates - each worker thread owns
+one of these and they are merged once the variant has finished. Failed operations are also
+counted here so errors follow the same per-thread path as latencies. */
+
+public class LatencyHistogram {
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  static final int LINEAR_LIMIT = SUB_BUCKET_COUNT << 1;
+  static final int MAX_MAGNITUDE = 40; // 2^40 ns is about 18 minutes - longer values are clamped
+  static final long MAX_TRACKABLE = (1L << MAX_MAGNITUDE) - 1;
+  public static final int BUCKET_COUNT =
+      LINEAR_LIMIT + (MAX_MAGNITUDE - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT;
+
+  final long[] counts = new long[BUCKET_COUNT];
+  long totalCount;
+  long totalNanos;
+  long maxValue;
+  long minValue = Long.MAX_VALUE;
+  long errorCount;
+
+  static int bucketIndex(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int subBucket = (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+    return LINEAR_LIMIT + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /** Highest value that would be counted in the given bucket. */
+  static long bucketUpperBound(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    int octave = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT;
+    int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT;
+    int shift = octave + 1;
+    long lower = ((long) (SUB_BUCKET_COUNT + subBucket)) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+  public void recordValue(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    } else if (nanos > MAX_TRACKABLE) {
+      nanos = MAX_TRACKABLE;
+    }
+    counts[bucketIndex(nanos)]++;
+    totalCount++;
+    totalNanos += nanos;
+    if (nanos > maxValue) {
+      maxValue = nanos;
+    }
+    if (nanos < minValue) {
+      minValue = nanos;
+    }
+  }
+
+  public void recordError() {
+    errorCount++;
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    totalNanos += other.totalNanos;
+    maxValue = Math.max(maxValue, other.maxValue);
+    minValue = Math.min(minValue, other.minValue);
+    errorCount += other.errorCount;
+  }
+
+  /* Sets this to what was recorded in later but not in earlier, both being cumulative snapshots
+  of the same recorders. Max and min are only bucket accurate for an interval. */
+  public void setToDifference(LatencyHistogram later, LatencyHistogram earlier) {
+    reset();
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long c = later.counts[i] - earlier.counts[i];
+      if (c > 0) {
+        counts[i] = c;
+        totalCount += c;
+        maxValue = bucketUpperBound(i);
+        minValue = Math.min(minValue, bucketUpperBound(i));
+      }
+    }
+    totalNanos = later.totalNanos - earlier.totalNanos;
+    errorCount = later.errorCount - earlier.errorCount;
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+    totalNanos = 0;
+    maxValue = 0;
+    minValue = Long.MAX_VALUE;
+    errorCount = 0;
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public long getErrorCount() {
+    return errorCount;
+  }
+
+  public long getMaxValue() {
+    return maxValue;
+  }
+
+  public double getMean() {
+    return totalCount == 0 ? 0 : (double) totalNanos / totalCount;
+  }
+
+  /** Value in nanoseconds below which the given percentage of recorded values fall. */
+  public long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(bucketUpperBound(i), maxValue);
+      }
+    }
+    return maxValue;
+  }
+
+  private static double micros(double nanos) {
+    return Math.round(nanos / 10.0) / 100.0;
+  }
+
+  /* Summary values are in microseconds, the bucket array is the raw counts so histograms from
+  different runs can be merged or re-percentiled later. */
+  public Document toDocument() {
+    Document summary = new Document();
+    summary.put("units", "microseconds");
+    summary.put("count", totalCount);
+    summary.put("errors", errorCount);
+    summary.put("mean", micros(getMean()));
+    summary.put("min", micros(totalCount == 0 ? 0 : minValue));
+    summary.put("p50", micros(getValueAtPercentile(50)));
+    summary.put("p90", micros(getValueAtPercentile(90)));
+    summary.put("p99", micros(getValueAtPercentile(99)));
+    summary.put("p999", micros(getValueAtPercentile(99.9)));
+    summary.put("max", micros(maxValue));
+    summary.put("subBucketBits", SUB_BUCKET_BITS);
+    List<Long> buckets = new ArrayList<>(BUCKET_COUNT);
+    for (long c : counts) {
+      buckets.add(c);
+    }
+    summary.put("buckets", buckets);
+    return summary;
+  }
+
+  /** Rebuilds a histogram from toDocument() output, exact for counts, to 10ns for the rest. */
+  public static LatencyHistogram fromDocument(Document summary) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    List<?> buckets = summary.getList("buckets", Object.class);
+    for (int i = 0; i < BUCKET_COUNT && i < buckets.size(); i++) {
+      histogram.counts[i] = ((Number) buckets.get(i)).longValue();
+      histogram.totalCount += histogram.counts[i];
+    }
+    if (histogram.totalCount > 0) {
+      histogram.totalNanos =
+          Math.round(((Number) summary.get("mean")).doubleValue() * 1000 * histogram.totalCount);
+      histogram.maxValue = Math.round(((Number) summary.get("max")).doubleValue() * 1000);
+      histogram.minValue = Math.round(((Number) summary.get("min")).doubleValue() * 1000);
+    }
+    Object errors = summary.get("errors");
+    histogram.errorCount = errors instanceof Number ? ((Number) errors).longValue() : 0;
+    return histogram;
+  }
+
+  public String toString() {
+    return String.format(
+        "n=%d p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+        totalCount,
+        getValueAtPercentile(50) / 1000.0,
+        getValueAtPercentile(90) / 1000.0,
+        getValueAtPercentile(99) / 1000.0,
+        getValueAtPercentile(99.9) / 1000.0,
+        maxValue / 1000.0);
+  }
+}
@@ -0,0 +1,46 @@
+package com.mongodb.solcon;
+
+/* The _ids one worker gives the documents it adds during a run, and which of them it may delete.
+Worker threadNo of nThreads takes base + threadNo, base + threadNo + nThreads and so on, so no two
+workers ever take the same id without sharing anything - not even across the processes of a
+distributed run, where threadNo and nThreads are global. Together the workers' ids stay dense
+apart from each one's latest few, close enough for the latest KeyDistribution.
+
+Deletes only get ids the worker has already written and been told so, never one whose insert is
+still in flight, oldest first. Single threaded, like the worker that owns it. */
+
+public class NewIds {
+  private final long first;
+  private final long stride;
+  private long claimed; // How many ids next() has handed out
+  private long written; // How many of those have been acknowledged
+  private long deleted; // How many of those nextToDelete() has handed out
+
+  public NewIds(long base, long threadNo, long nThreads) {
+    this.first = base + threadNo;
+    this.stride = nThreads;
+  }
+
+  private long id(long n) {
+    return first + n * stride;
+  }
+
+  /** Claims the next new id for a write. */
+  public long next() {
+    return id(claimed++);
+  }
+
+  /**
+   * Every id claimed so far has been written, or failed and never will be. Returns the newest of
+   * them, or -1 if none have been claimed.
+   */
+  public long acknowledge() {
+    written = claimed;
+    return written == 0 ? -1 : id(written - 1);
+  }
+
+  /** The oldest acknowledged id not yet handed out for deletion, or -1 if there are none. */
+  public long nextToDelete() {
+    return deleted < written ? id(deleted++) : -1;
+  }
+}
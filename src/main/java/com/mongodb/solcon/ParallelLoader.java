@@ -0,0 +1,203 @@
+package com.mongodb.solcon;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Loads the initial data for a test with a pool of loader threads rather than one. The ids 0 to
+nDocs - 1 are split into a contiguous slice per loader, each loader has its own DocumentFactory
+and writes unordered batches, so a failed document doesn't stop the rest of its batch. The pool
+size is loaderThreads (default one per core) and the batch size loadBatchSize (default 1000),
+either from the test or the variant. The returned document is the load's own result - how long
+it took and how fast it went. Given a DatasetFingerprint the slices and their progress are kept
+in its metadata, so an interrupted load can be resumed. */
+
+public class ParallelLoader {
+  private static final Logger logger = LoggerFactory.getLogger(ParallelLoader.class);
+  // Loaders count down from here so their ids never clash with a worker's threadNo
+  public static final int FIRST_LOADER_THREAD_NO = 4095;
+
+  public interface DocumentSource {
+    RawBsonDocument create(DocumentFactory factory, long id);
+  }
+
+  private final int loaderThreads;
+  private final int batchSize;
+
+  public ParallelLoader(Document testConfig) {
+    loaderThreads =
+        Math.max(
+            1,
+            (int)
+                RunContext.numberFromConfig(
+                    testConfig, "loaderThreads", Runtime.getRuntime().availableProcessors()));
+    batchSize = Math.max(1, (int) RunContext.numberFromConfig(testConfig, "loadBatchSize", 1000));
+  }
+
+  /** A contiguous range of ids for one loader task, loaded from next up to to. */
+  public static class Slice {
+    final int index;
+    final long from;
+    final long to;
+    final long next;
+
+    public Slice(int index, long from, long to, long next) {
+      this.index = index;
+      this.from = from;
+      this.to = to;
+      this.next = next;
+    }
+  }
+
+  /**
+   * Inserts nDocs documents into collection. factories makes the DocumentFactory for a loader
+   * given the threadNo it should use, source makes the document for an id.
+   */
+  public Document load(
+      MongoCollection<RawBsonDocument> collection,
+      long nDocs,
+      IntFunction<DocumentFactory> factories,
+      DocumentSource source) {
+    return load(collection, nDocs, factories, source, null);
+  }
+
+  /**
+   * As above but tracking progress in a dataset's metadata, and carrying on from where it got to
+   * if it is a partial load. The dataset is marked complete at the end.
+   */
+  public Document load(
+      MongoCollection<RawBsonDocument> collection,
+      long nDocs,
+      IntFunction<DocumentFactory> factories,
+      DocumentSource source,
+      DatasetFingerprint dataset) {
+    List<Slice> slices = new ArrayList<>();
+    if (dataset != null) {
+      slices = dataset.slices(nDocs, loaderThreads);
+    } else {
+      for (int index = 0; index < loaderThreads; index++) {
+        long from = nDocs * index / loaderThreads;
+        slices.add(new Slice(index, from, nDocs * (index + 1) / loaderThreads, from));
+      }
+    }
+    long alreadyLoaded = 0;
+    for (Slice slice : slices) {
+      alreadyLoaded += slice.next - slice.from;
+    }
+    if (alreadyLoaded > 0) {
+      logger.info(
+          "Resuming load into {} with {} of {} documents already there",
+          collection.getNamespace(),
+          alreadyLoaded,
+          nDocs);
+    } else {
+      logger.info(
+          "Loading {} documents into {} with {} loader threads",
+          nDocs,
+          collection.getNamespace(),
+          loaderThreads);
+    }
+    AtomicLong loaded = new AtomicLong();
+    AtomicLong bytes = new AtomicLong();
+    AtomicLong errors = new AtomicLong();
+    long reportEvery = Math.max(1, nDocs / 20);
+    AtomicLong nextReport = new AtomicLong(alreadyLoaded + reportEvery);
+    long resumedFrom = alreadyLoaded;
+    InsertManyOptions unordered = new InsertManyOptions().ordered(false);
+
+    long start = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool(loaderThreads);
+    List<Future<?>> loaders = new ArrayList<>();
+    for (Slice slice : slices) {
+      if (slice.next >= slice.to) {
+        continue;
+      }
+      int loaderThreadNo = FIRST_LOADER_THREAD_NO - slice.index;
+      loaders.add(
+          pool.submit(
+              () -> {
+                DocumentFactory factory = factories.apply(loaderThreadNo);
+                List<RawBsonDocument> batch = new ArrayList<>(batchSize);
+                long batchBytes = 0;
+                boolean clean = true; // High-water mark stops at the first failed batch
+                for (long id = slice.next; id < slice.to; id++) {
+                  RawBsonDocument d = source.create(factory, id);
+                  batch.add(d);
+                  batchBytes += d.getByteBuffer().remaining();
+                  if (batch.size() >= batchSize || id == slice.to - 1) {
+                    try {
+                      collection.insertMany(batch, unordered);
+                    } catch (MongoBulkWriteException e) {
+                      // Duplicates are the last batch before a resume going in again
+                      long failed =
+                          e.getWriteErrors().stream().filter(w -> w.getCode() != 11000).count();
+                      if (failed > 0) {
+                        clean = false;
+                        errors.addAndGet(failed);
+                        logger.error("Error inserting batch: {}", e.getWriteErrors().get(0));
+                      }
+                    } catch (Exception e) {
+                      clean = false;
+                      errors.addAndGet(batch.size());
+                      logger.error("Error inserting batch", e);
+                    }
+                    if (dataset != null && clean) {
+                      dataset.recordProgress(slice.index, id + 1);
+                    }
+                    bytes.addAndGet(batchBytes);
+                    long done = resumedFrom + loaded.addAndGet(batch.size());
+                    long report = nextReport.get();
+                    if (done >= report && nextReport.compareAndSet(report, report + reportEvery)) {
+                      logger.info(
+                          "Data Generation: Generated {} of {} = {}% complete",
+                          done, nDocs, done * 100 / nDocs);
+                    }
+                    batch.clear();
+                    batchBytes = 0;
+                  }
+                }
+              }));
+    }
+    pool.shutdown();
+    try {
+      for (Future<?> f : loaders) {
+        f.get();
+      }
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Loader failed", e.getCause());
+    } catch (InterruptedException e) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while loading", e);
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    Document loadInfo =
+        new Document("collection", collection.getNamespace().getFullName())
+            .append("docs", loaded.get())
+            .append("resumedFrom", resumedFrom)
+            .append("errors", errors.get())
+            .append("loaderThreads", loaderThreads)
+            .append("batchSize", batchSize)
+            .append("seconds", Math.round(seconds * 1000) / 1000.0)
+            .append("docsPerSec", Math.round(loaded.get() / seconds))
+            .append("MBPerSec", Math.round(bytes.get() / seconds / 1048576 * 10) / 10.0);
+    logger.info("Load complete {}", loadInfo.toJson());
+    if (dataset != null && errors.get() == 0) {
+      dataset.markComplete(loadInfo);
+    }
+    return loadInfo;
+  }
+}
@@ -0,0 +1,495 @@
+package com.mongodb.solcon;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.random.RandomGenerator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+/* A query (or any document) from a test config with placeholders for values that change from one
+operation to the next, compiled once into a tree of nodes that write BSON straight into a byte
+array, so each operation only does the random parts. Names and anything without a placeholder
+in it are encoded once when the template is compiled. A string value is a placeholder if it is
+the whole string:
+
+    RANDINT(from,to)           A random int, as it always has been from - 1 to to - 1, picked
+                               with the test's KeyDistribution
+    RANDINTLIST(from,to,len)   An array of len different RANDINT values, from the same
+                               KeyDistribution
+    RANDSTR(len)               A string of len characters from the TextCorpus
+    RANDSTR(min,max)           A string of between min and max characters
+    RANDDATE(from,to)          A random date between two dates (2025-01-31, an ISO instant or
+                               epoch millis)
+    SEQ(start)                 start, start + 1 ... as a long, counted across all the workers
+                               sharing the template
+    CHOICE(a,b,c)              One of the values, numbers as numbers and anything else a string
+
+Compiled templates are thread safe, only the SEQ counters are shared state. */
+
+public final class QueryTemplate {
+  private static final Pattern PLACEHOLDER = Pattern.compile("^([A-Z]+)\\((.*)\\)$");
+  private static final byte ARRAY = (byte) BsonType.ARRAY.getValue();
+  private static final byte DATE_TIME = (byte) BsonType.DATE_TIME.getValue();
+  private static final byte DOCUMENT = (byte) BsonType.DOCUMENT.getValue();
+  private static final byte INT32 = (byte) BsonType.INT32.getValue();
+  private static final byte INT64 = (byte) BsonType.INT64.getValue();
+  private static final byte STRING = (byte) BsonType.STRING.getValue();
+
+  /** Writes one value and returns its BSON type, the caller has already written the name. */
+  private interface Node {
+    byte write(Output out, RandomGenerator random);
+  }
+
+  private final BsonDocument template;
+  private final DocumentNode root;
+  private volatile int sizeHint = 64;
+
+  private final Document keyDistribution;
+
+  private QueryTemplate(BsonDocument template, Document keyDistribution) {
+    this.template = template;
+    this.keyDistribution = keyDistribution;
+    this.root = compileDocument(template);
+  }
+
+  public static QueryTemplate compile(Document template) {
+    return compile(template, new Document("type", "uniform"));
+  }
+
+  /** As compile but RANDINT draws from the given KeyDistribution spec. */
+  public static QueryTemplate compile(Document template, Document keyDistribution) {
+    return new QueryTemplate(template.toBsonDocument(), keyDistribution);
+  }
+
+  /** A new document from the template. */
+  public RawBsonDocument generate(RandomGenerator random) {
+    Output out = new Output(sizeHint);
+    root.write(out, random);
+    if (out.pos > sizeHint) {
+      sizeHint = out.pos;
+    }
+    return new RawBsonDocument(out.buf, 0, out.pos);
+  }
+
+  public String toJson() {
+    return template.toJson();
+  }
+
+  private DocumentNode compileDocument(BsonDocument doc) {
+    List<byte[]> names = new ArrayList<>();
+    List<Node> values = new ArrayList<>();
+    for (Map.Entry<String, BsonValue> entry : doc.entrySet()) {
+      names.add(cstring(entry.getKey()));
+      values.add(compile(entry.getValue()));
+    }
+    return new DocumentNode(names.toArray(new byte[0][]), values.toArray(new Node[0]));
+  }
+
+  private Node compile(BsonValue value) {
+    if (value.isDocument()) {
+      DocumentNode node = compileDocument(value.asDocument());
+      return node.isConstant() ? new ConstantNode(value) : node;
+    }
+    if (value.isArray()) {
+      List<Node> elements = new ArrayList<>();
+      for (BsonValue element : value.asArray()) {
+        elements.add(compile(element));
+      }
+      byte[][] names = new byte[elements.size()][];
+      for (int i = 0; i < names.length; i++) {
+        names[i] = cstring(Integer.toString(i));
+      }
+      DocumentNode node = new DocumentNode(names, elements.toArray(new Node[0]));
+      return node.isConstant() ? new ConstantNode(value) : new ArrayNode(node);
+    }
+    if (value.isString()) {
+      Node node = placeholder(value.asString().getValue());
+      if (node != null) {
+        return node;
+      }
+    }
+    return new ConstantNode(value);
+  }
+
+  // The node for a placeholder, or null if the string is just a string
+  private Node placeholder(String str) {
+    Matcher m = PLACEHOLDER.matcher(str);
+    if (!m.matches()) {
+      return null;
+    }
+    String[] args = m.group(2).isBlank() ? new String[0] : m.group(2).split(",");
+    for (int i = 0; i < args.length; i++) {
+      args[i] = args[i].trim();
+    }
+    switch (m.group(1)) {
+      case "RANDINT":
+        checkArgs(str, args, 2);
+        int from = intArg(args[0]);
+        return new RandIntNode(
+            KeyDistribution.create(keyDistribution, from - 1, intArg(args[1]) - from + 1));
+      case "RANDINTLIST":
+        checkArgs(str, args, 3);
+        int listFrom = intArg(args[0]);
+        int listTo = intArg(args[1]);
+        return new RandIntListNode(
+            KeyDistribution.create(keyDistribution, listFrom - 1, listTo - listFrom + 1),
+            listFrom,
+            listTo,
+            intArg(args[2]));
+      case "RANDSTR":
+        if (args.length == 1) {
+          return new RandStrNode(intArg(args[0]), intArg(args[0]));
+        }
+        checkArgs(str, args, 2);
+        return new RandStrNode(intArg(args[0]), intArg(args[1]));
+      case "RANDDATE":
+        checkArgs(str, args, 2);
+        return new RandDateNode(dateArg(args[0]), dateArg(args[1]));
+      case "SEQ":
+        return new SeqNode(args.length == 0 ? 1 : Long.parseLong(args[0]));
+      case "CHOICE":
+        if (args.length == 0) {
+          throw new IllegalArgumentException("CHOICE needs at least one value: " + str);
+        }
+        ConstantNode[] choices = new ConstantNode[args.length];
+        for (int i = 0; i < args.length; i++) {
+          choices[i] = new ConstantNode(choiceArg(args[i]));
+        }
+        return new ChoiceNode(choices);
+      default:
+        return null; // Some other string that happens to look like a call
+    }
+  }
+
+  private static void checkArgs(String str, String[] args, int expected) {
+    if (args.length != expected) {
+      throw new IllegalArgumentException(
+          "Expected " + expected + " arguments in template placeholder " + str);
+    }
+  }
+
+  private static int intArg(String arg) {
+    return (int) Double.parseDouble(arg); // Formulas can leave a ".0" on the end
+  }
+
+  private static long dateArg(String arg) {
+    if (arg.matches("-?\\d+")) {
+      return Long.parseLong(arg);
+    }
+    if (arg.length() == 10) {
+      return LocalDate.parse(arg).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+    return Instant.parse(arg).toEpochMilli();
+  }
+
+  private static BsonValue choiceArg(String arg) {
+    try {
+      long number = Long.parseLong(arg);
+      return number == (int) number ? new BsonInt32((int) number) : new BsonInt64(number);
+    } catch (NumberFormatException e) {
+      // Not a whole number
+    }
+    try {
+      return new BsonDouble(Double.parseDouble(arg));
+    } catch (NumberFormatException e) {
+      // Not a number at all
+    }
+    if (arg.length() >= 2 && arg.startsWith("\"") && arg.endsWith("\"")) {
+      arg = arg.substring(1, arg.length() - 1);
+    }
+    return new BsonString(arg);
+  }
+
+  private static byte[] cstring(String name) {
+    byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+    return Arrays.copyOf(encoded, encoded.length + 1); // Trailing zero
+  }
+
+  // A growing little endian byte array, as BSON wants
+  private static final class Output {
+    byte[] buf;
+    int pos;
+
+    Output(int size) {
+      buf = new byte[size];
+    }
+
+    void ensure(int n) {
+      if (pos + n > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+      }
+    }
+
+    void putByte(byte b) {
+      ensure(1);
+      buf[pos++] = b;
+    }
+
+    void putBytes(byte[] bytes) {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buf, pos, bytes.length);
+      pos += bytes.length;
+    }
+
+    void putInt(int v) {
+      ensure(4);
+      putIntAt(pos, v);
+      pos += 4;
+    }
+
+    int getIntAt(int at) {
+      return (buf[at] & 0xff)
+          | (buf[at + 1] & 0xff) << 8
+          | (buf[at + 2] & 0xff) << 16
+          | (buf[at + 3] & 0xff) << 24;
+    }
+
+    void putIntAt(int at, int v) {
+      buf[at] = (byte) v;
+      buf[at + 1] = (byte) (v >>> 8);
+      buf[at + 2] = (byte) (v >>> 16);
+      buf[at + 3] = (byte) (v >>> 24);
+    }
+
+    void putLong(long v) {
+      putInt((int) v);
+      putInt((int) (v >>> 32));
+    }
+  }
+
+  // A value encoded once, kept as its type and the bytes after the name
+  private static final class ConstantNode implements Node {
+    private final byte type;
+    private final byte[] bytes;
+
+    ConstantNode(BsonValue value) {
+      BasicOutputBuffer buffer = new BasicOutputBuffer();
+      try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+        new BsonValueCodec()
+            .encode(writer, new BsonDocument("", value), EncoderContext.builder().build());
+      }
+      byte[] doc = buffer.toByteArray();
+      // Length(4) type(1) empty name(1) value ... end of document(1)
+      type = doc[4];
+      bytes = Arrays.copyOfRange(doc, 6, doc.length - 1);
+    }
+
+    @Override
+    public byte write(Output out, RandomGenerator random) {
+      out.putBytes(bytes);
+      return type;
+    }
+  }
+
+  private static final class DocumentNode implements Node {
+    private final byte[][] names;
+    private final Node[] values;
+
+    DocumentNode(byte[][] names, Node[] values) {
+      this.names = names;
+      this.values = values;
+    }
+
+    boolean isConstant() {
+      for (Node value : values) {
+        if (!(value instanceof ConstantNode)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public byte write(Output out, RandomGenerator random) {
+      int start = out.pos;
+      out.putInt(0); // Length, filled in at the end
+      for (int i = 0; i < names.length; i++) {
+        int typeAt = out.pos;
+        out.putByte((byte) 0); // Type, known once the value is written
+        out.putBytes(names[i]);
+        byte type = values[i].write(out, random); // Before out.buf, writing can grow it
+        out.buf[typeAt] = type;
+      }
+      out.putByte((byte) 0);
+      out.putIntAt(start, out.pos - start);
+      return DOCUMENT;
+    }
+  }
+
+  private static final class ArrayNode implements Node {
+    private final DocumentNode elements; // Named "0", "1" ...
+
+    ArrayNode(DocumentNode elements) {
+      this.elements = elements;
+    }
+
+    @Override
+    public byte write(Output out, RandomGenerator random) {
+      elements.write(out, random);
+      return ARRAY;
+    }
+  }
+
+  private static final class RandIntNode implements Node {
+    private final KeyDistribution keys;
+
+    RandIntNode(KeyDistribution keys) {
+      this.keys = keys;
+    }
+
+    @Override
+    public byte write(Output out, RandomGenerator random) {
+      out.putInt((int) keys.next(random));
+      return INT32;
+    }
+  }
+
+  private static final class RandIntListNode implements Node {
+    private static final byte[][] INDEX_NAMES = new byte[1000][];
+    // Where each element's value is from the start of the array, to check for repeats in place
+    private static final int[] VALUE_AT = new int[INDEX_NAMES.length];
+    // After this many repeats a skewed distribution has run out of fresh keys, go uniform
+    private static final int MAX_REPEATS = 1000;
+    private final KeyDistribution keys;
+    private final int from;
+    private final int bound;
+    private final int len;
+
+    static {
+      int at = 4;
+      for (int i = 0; i < INDEX_NAMES.length; i++) {
+        INDEX_NAMES[i] = cstring(Integer.toString(i));
+        VALUE_AT[i] = at + 1 + INDEX_NAMES[i].length;
+        at = VALUE_AT[i] + 4;
+      }
+    }
+
+    RandIntListNode(KeyDistribution keys, int from, int to, int len) {
+      // Ensure we don't ask for more unique numbers than possible
+      if (len > (to - from + 1)) {
+        throw new IllegalArgumentException(
+            "Not enough unique numbers in range to satisfy length " + len);
+      }
+      if (len > INDEX_NAMES.length) {
+        throw new IllegalArgumentException("RANDINTLIST can be at most 1000 long");
+      }
+      this.keys = keys;
+      this.from = from;
+      this.bound = (to - from) + 1;
+      this.len = len;
+    }
+
+    @Override
+    public byte write(Output out, RandomGenerator random) {
+      int start = out.pos;
+      out.putInt(0);
+      int repeats = 0;
+      for (int n = 0; n < len; ) {
+        int value =
+            repeats < MAX_REPEATS
+                ? (int) keys.next(random)
+                : random.nextInt(bound) + from - 1;
+        boolean seen = false;
+        for (int i = 0; i < n && !seen; i++) {
+          seen = out.getIntAt(start + VALUE_AT[i]) == value;
+        }
+        if (seen) {
+          repeats++;
+        } else {
+          out.putByte(INT32);
+          out.putBytes(INDEX_NAMES[n++]);
+          out.putInt(value);
+        }
+      }
+      out.putByte((byte) 0);
+      out.putIntAt(start, out.pos - start);
+      return ARRAY;
+    }
+  }
+
+  private static final class RandStrNode implements Node {
+    private final int minLength;
+    private final int maxLength;
+
+    RandStrNode(int minLength, int maxLength) {
+      this.minLength = Math.max(0, minLength);
+      this.maxLength = Math.min(TextCorpus.SIZE, Math.max(this.minLength, maxLength));
+    }
+
+    @Override
+    public byte write(Output out, RandomGenerator random) {
+      int length = minLength + random.nextInt(maxLength - minLength + 1);
+      int offset = random.nextInt(TextCorpus.SIZE - length + 1);
+      // The corpus is ASCII so characters and bytes are the same
+      out.putInt(length + 1);
+      out.ensure(length + 1);
+      TextCorpus.get().copyTo(offset, out.buf, out.pos, length);
+      out.pos += length;
+      out.buf[out.pos++] = 0;
+      return STRING;
+    }
+  }
+
+  private static final class RandDateNode implements Node {
+    private final long from;
+    private final long range;
+
+    RandDateNode(long from, long to) {
+      this.from = Math.min(from, to);
+      this.range = Math.abs(to - from) + 1;
+    }
+
+    @Override
+    public byte write(Output out, RandomGenerator random) {
+      out.putLong(from + (long) (random.nextDouble() * range));
+      return DATE_TIME;
+    }
+  }
+
+  private static final class SeqNode implements Node {
+    private final AtomicLong next;
+
+    SeqNode(long start) {
+      next = new AtomicLong(start);
+    }
+
+    @Override
+    public byte write(Output out, RandomGenerator random) {
+      out.putLong(next.getAndIncrement());
+      return INT64;
+    }
+  }
+
+  private static final class ChoiceNode implements Node {
+    private final ConstantNode[] choices;
+
+    ChoiceNode(ConstantNode[] choices) {
+      this.choices = choices;
+    }
+
+    @Override
+    public byte write(Output out, RandomGenerator random) {
+      return choices[random.nextInt(choices.length)].write(out, random);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package com.mongodb.solcon;
+
+import java.util.SplittableRandom;
+import org.bson.Document;
+
+/* Where every random number a worker uses comes from. Each run of a variant has one seed - the
+variant's "seed", else the test's, else a fresh one - which is recorded with the results, and
+each worker thread gets its own SplittableRandom derived from the seed and its threadNo. Nothing
+is shared between threads, so there is no contention, and running a variant again with the
+recorded seed makes the same choices on every thread.
+
+Generated document contents are part of the dataset rather than the run, so DocumentFactory
+streams come from DATA_SEED instead, which is the same one the TextCorpus is made from. */
+
+public final class RandomStreams {
+  // Where the controller puts the seed for the workers it is about to create
+  public static final String RUN_SEED = "runSeed";
+  public static final long DATA_SEED = TextCorpus.SEED;
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  private RandomStreams() {}
+
+  /** The seed for this variant, from the config or new if it doesn't give one. */
+  public static long seedFromConfig(Document testConfig) {
+    Document variant = testConfig.get("variant", Document.class);
+    Object seed = variant == null ? null : variant.get("seed");
+    if (seed == null) {
+      seed = testConfig.get("seed");
+    }
+    if (seed instanceof Number) {
+      return ((Number) seed).longValue();
+    }
+    return new SplittableRandom().nextLong();
+  }
+
+  /** The seed the controller set for the workers being created now, 0 outside a run. */
+  public static long runSeed(Document testConfig) {
+    Object seed = testConfig.get(RUN_SEED);
+    return seed instanceof Number ? ((Number) seed).longValue() : 0;
+  }
+
+  /** A seed for the warmup that won't repeat the live run's choices. */
+  public static long warmupSeed(long seed) {
+    return mix64(seed + GOLDEN_GAMMA);
+  }
+
+  public static SplittableRandom forThread(long seed, long threadNo) {
+    // Mixed, as seeds next to each other would otherwise give overlapping streams
+    return new SplittableRandom(mix64(seed ^ mix64(threadNo + GOLDEN_GAMMA)));
+  }
+
+  // The MurmurHash3 finalizer, as SplittableRandom uses
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return z ^ (z >>> 33);
+  }
+}
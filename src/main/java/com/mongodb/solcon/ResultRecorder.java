@@ -23,6 +23,7 @@ public class ResultRecorder {
   final String databaseName = "unibench";
   final String collectionName = "results";
   final String historyCollectionName = "results_history";
+  final String loadCollectionName = "load_results";
   MongoClient mongoClient;
   boolean enabled = false;
 
@@ -88,6 +89,7 @@ public class ResultRecorder {
       Document beforeStatus,
       Document afterStatus,
       Document metrics,
+      LatencyHistogram latency,
       Instant startTime,
       Instant endTime) {
 
@@ -104,6 +106,7 @@ public class ResultRecorder {
     testRunInfo.put("after_status", SanitiseStats(afterStatus));
     testRunInfo.put("metrics", metrics);
     testRunInfo.put("testResults", testReturnInfo);
+    testRunInfo.put("latency", latency.toDocument());
     testRunInfo.put("bench_config", benchConfig);
 
     MongoCollection<Document> collection =
@@ -120,6 +123,18 @@ public class ResultRecorder {
     collection.replaceOne(new Document("_id", id), testRunInfo, options);
   }
 
+  // Data loading is timed separately from the tests it is for
+  protected void recordLoad(Document testConfig, Document variant, Document loadInfo) {
+    if (!enabled) {
+      return;
+    }
+    Document loadRunInfo = new Document("testname", testConfig.getString("filename"));
+    loadRunInfo.put("time", Date.from(Instant.now()));
+    loadRunInfo.put("variant", prefixDollarKeys(variant));
+    loadRunInfo.put("load", loadInfo);
+    mongoClient.getDatabase(databaseName).getCollection(loadCollectionName).insertOne(loadRunInfo);
+  }
+
   // $where breaks flex and free tier
   Document SanitiseStats(Document stats) {
     // Usage Example
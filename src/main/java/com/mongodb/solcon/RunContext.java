@@ -0,0 +1,215 @@
+package com.mongodb.solcon;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.bson.Document;
+
+/* State shared by all the worker threads of one run of a variant.
+
+targetOpsPerSec (in the variant, or at the top level of the test) switches the run to open
+loop: operations are handed out as slots on a fixed timetable that all workers draw from, and
+latency is measured from when the slot was due rather than when the worker got round to it. If
+the server stalls the slots keep falling due, so the stall shows up as latency instead of as a
+quiet drop in offered load (coordinated omission).
+
+With "executor": "virtual" there may be tens of thousands of workers, too many to give each its
+own histogram, so workers instead share a fixed set of stripes sized to the number of cores.
+
+With "engine": "reactive" each worker issues operations through the reactive-streams driver and
+keeps up to maxInFlight of them outstanding instead of one at a time. */
+
+public class RunContext {
+  final double targetOpsPerSec;
+  final long slotIntervalNanos;
+  final AtomicLong nextSlot = new AtomicLong();
+  final LatencyHistogram[] histogramStripes;
+  final int maxInFlight; // 0 unless using the reactive engine
+  volatile long startNanos;
+  volatile boolean runUntilStopped; // Workers ignore their op count and test time
+  volatile boolean stopRequested;
+  // Start gate and phase tracking for workers run through gated()
+  final CountDownLatch startGate = new CountDownLatch(1);
+  final CountDownLatch firstFinished = new CountDownLatch(1);
+  CountDownLatch ready = new CountDownLatch(0);
+  CountDownLatch allActive = new CountDownLatch(0);
+  // Objects a test builds once per run and shares between its workers
+  final Map<String, Object> shared = new ConcurrentHashMap<>();
+
+  public RunContext(double targetOpsPerSec, boolean virtualThreads, int maxInFlight) {
+    this.targetOpsPerSec = targetOpsPerSec;
+    this.maxInFlight = maxInFlight;
+    this.slotIntervalNanos = targetOpsPerSec > 0 ? (long) (1_000_000_000L / targetOpsPerSec) : 0;
+    this.startNanos = System.nanoTime();
+    if (virtualThreads) {
+      histogramStripes = new LatencyHistogram[Runtime.getRuntime().availableProcessors() * 4];
+      for (int i = 0; i < histogramStripes.length; i++) {
+        histogramStripes[i] = new LatencyHistogram();
+      }
+    } else {
+      histogramStripes = null;
+    }
+  }
+
+  public static RunContext fromConfig(Document testConfig) {
+    int maxInFlight =
+        usesReactiveEngine(testConfig) ? (int) numberFromConfig(testConfig, "maxInFlight", 16) : 0;
+    return new RunContext(
+        numberFromConfig(testConfig, "targetOpsPerSec", 0),
+        usesVirtualThreads(testConfig),
+        maxInFlight);
+  }
+
+  public static boolean usesReactiveEngine(Document testConfig) {
+    return "reactive".equalsIgnoreCase(stringFromConfig(testConfig, "engine"));
+  }
+
+  public static boolean usesVirtualThreads(Document testConfig) {
+    return "virtual".equalsIgnoreCase(stringFromConfig(testConfig, "executor"));
+  }
+
+  static String stringFromConfig(Document testConfig, String key) {
+    Document variant = testConfig.get("variant", Document.class);
+    String value = variant != null ? variant.getString(key) : null;
+    return value != null ? value : testConfig.getString(key);
+  }
+
+  // Variant setting wins over the test wide one
+  static double numberFromConfig(Document testConfig, String key, double defaultValue) {
+    Document variant = testConfig.get("variant", Document.class);
+    Object value = variant != null ? variant.get(key) : null;
+    if (value == null) {
+      value = testConfig.get(key);
+    }
+    return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+  }
+
+  /** Marks the instant the timetable starts from. */
+  public void start() {
+    nextSlot.set(0);
+    startNanos = System.nanoTime();
+  }
+
+  /** Sets how many gated workers there will be, call before submitting any. */
+  public void expectWorkers(int nWorkers) {
+    ready = new CountDownLatch(nWorkers);
+    allActive = new CountDownLatch(nWorkers);
+    if (nWorkers == 0) {
+      firstFinished.countDown();
+    }
+  }
+
+  /** Wraps a worker so it waits at the start gate, and so its start and finish are tracked. */
+  public Runnable gated(BaseMongoTest worker) {
+    return () -> {
+      ready.countDown();
+      try {
+        startGate.await();
+        allActive.countDown();
+        worker.run();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        firstFinished.countDown();
+      }
+    };
+  }
+
+  public void awaitReady() throws InterruptedException {
+    ready.await();
+  }
+
+  /** Starts the timetable and opens the gate. */
+  public void release() {
+    start();
+    startGate.countDown();
+  }
+
+  public void awaitAllActive() throws InterruptedException {
+    allActive.await();
+  }
+
+  public void awaitFirstFinished() throws InterruptedException {
+    firstFinished.await();
+  }
+
+  /** Workers keep going until requestStop() rather than to their own op count or time. */
+  public void setRunUntilStopped(boolean runUntilStopped) {
+    this.runUntilStopped = runUntilStopped;
+  }
+
+  public boolean isRunUntilStopped() {
+    return runUntilStopped;
+  }
+
+  public void requestStop() {
+    stopRequested = true;
+  }
+
+  public boolean isStopRequested() {
+    return stopRequested;
+  }
+
+  public boolean isOpenLoop() {
+    return slotIntervalNanos > 0;
+  }
+
+  public double getTargetOpsPerSec() {
+    return targetOpsPerSec;
+  }
+
+  public boolean isReactive() {
+    return maxInFlight > 0;
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  public boolean hasHistogramStripes() {
+    return histogramStripes != null;
+  }
+
+  LatencyHistogram histogramStripe(long threadNo) {
+    return histogramStripes[(int) (threadNo % histogramStripes.length)];
+  }
+
+  /** Merges the latency recorded by all the workers of this run. */
+  public LatencyHistogram mergedLatency(Iterable<BaseMongoTest> workers) {
+    LatencyHistogram merged = new LatencyHistogram();
+    mergeLatencyInto(merged, workers);
+    return merged;
+  }
+
+  /** As mergedLatency but reusing the target, which is not cleared first. */
+  public void mergeLatencyInto(LatencyHistogram merged, Iterable<BaseMongoTest> workers) {
+    if (histogramStripes != null) {
+      for (LatencyHistogram stripe : histogramStripes) {
+        merged.add(stripe);
+      }
+    } else {
+      for (BaseMongoTest worker : workers) {
+        if (worker.getLatencyHistogram() != null) {
+          merged.add(worker.getLatencyHistogram());
+        }
+      }
+    }
+  }
+
+  /** The run's object under key, made by the first worker to ask for it. */
+  @SuppressWarnings("unchecked")
+  public <T> T shared(String key, Supplier<T> create) {
+    return (T) shared.computeIfAbsent(key, k -> create.get());
+  }
+
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  /** Claims the next free slot on the timetable and returns when it is due. */
+  long claimSlot() {
+    return startNanos + nextSlot.getAndIncrement() * slotIntervalNanos;
+  }
+}
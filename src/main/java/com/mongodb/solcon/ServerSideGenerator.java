@@ -0,0 +1,157 @@
+package com.mongodb.solcon;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Has the server build a test's initial data itself, so nothing but a few thousand tiny seed
+documents and a pipeline go over the wire. Each seed covers a range of sequence numbers,
+$range and $unwind expand it to one document per number, and the document is built with the
+caller's fields (expressions on "$n", the sequence number as a long) followed by the same
+intfield/datefield/stringfield sets DocumentFactory writes, with $rand standing in for the
+client's Random. Strings are cut from a piece of the TextCorpus passed to the pipeline once as a
+variable. Several aggregations run at once, loaderThreads of them, each on its share of the
+seeds, all $merging into the target.
+
+Only the default flat layout can be built this way - the data is similar in size and shape to the
+client's, not byte for byte the same. Needs MongoDB 5.0 or later for pipeline variables. */
+
+public class ServerSideGenerator {
+  private static final Logger logger = LoggerFactory.getLogger(ServerSideGenerator.class);
+  static final int DOCS_PER_SEED = 10_000;
+  static final int CORPUS_CHARS = 64 * 1024;
+  static final int MEAN_STRING_LENGTH = 32; // As DocumentFactory.MEANSTRINGLENGTH
+
+  private final int pipelines;
+
+  public ServerSideGenerator(Document testConfig) {
+    pipelines = Math.max(1, (int) RunContext.numberFromConfig(testConfig, "loaderThreads", 8));
+  }
+
+  /** How many int/date/string sets a client generated document of this layout has. */
+  public static int fieldSetsIn(RawBsonDocument sample) {
+    int sets = 0;
+    while (sample.containsKey("intfield" + (sets + 1))) {
+      sets++;
+    }
+    return sets;
+  }
+
+  public Document generate(
+      MongoDatabase database,
+      MongoCollection<?> collection,
+      long nDocs,
+      Document fields,
+      int fieldSets) {
+    String seedName = collection.getNamespace().getCollectionName() + "_seed";
+    MongoCollection<Document> seeds = database.getCollection(seedName);
+    seeds.drop();
+    List<Document> seedDocs = new ArrayList<>();
+    for (long from = 0, seed = 0; from < nDocs; from += DOCS_PER_SEED, seed++) {
+      seedDocs.add(
+          new Document("_id", seed)
+              .append("from", from)
+              .append("to", Math.min(nDocs, from + DOCS_PER_SEED)));
+    }
+    if (!seedDocs.isEmpty()) {
+      seeds.insertMany(seedDocs);
+    }
+    logger.info(
+        "Generating {} documents server side from {} seeds with {} pipelines",
+        nDocs,
+        seedDocs.size(),
+        pipelines);
+
+    Document corpus = new Document("corpus", TextCorpus.get().substring(0, CORPUS_CHARS));
+    long start = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool(pipelines);
+    List<Future<?>> running = new ArrayList<>();
+    for (int p = 0; p < pipelines; p++) {
+      List<Document> pipeline =
+          pipeline(p, collection.getNamespace().getCollectionName(), fields, fieldSets);
+      running.add(pool.submit(() -> seeds.aggregate(pipeline).let(corpus).toCollection()));
+    }
+    pool.shutdown();
+    try {
+      for (Future<?> f : running) {
+        f.get();
+      }
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Server side generation failed", e.getCause());
+    } catch (InterruptedException e) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted during server side generation", e);
+    } finally {
+      seeds.drop();
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long docs = collection.estimatedDocumentCount();
+    Document loadInfo =
+        new Document("collection", collection.getNamespace().getFullName())
+            .append("mode", "server")
+            .append("docs", docs)
+            .append("pipelines", pipelines)
+            .append("seconds", Math.round(seconds * 1000) / 1000.0)
+            .append("docsPerSec", Math.round(docs / seconds));
+    logger.info("Server side generation complete {}", loadInfo.toJson());
+    return loadInfo;
+  }
+
+  private List<Document> pipeline(int p, String into, Document fields, int fieldSets) {
+    Document shape = new Document(fields);
+    for (int f = 1; f <= fieldSets; f++) {
+      shape.append("intfield" + f, randomInt(100_000));
+      shape.append(
+          "datefield" + f,
+          new Document("$add", List.of(new Date(1754917200011L), randomLong(10_000_000_000L))));
+      shape.append(
+          "stringfield" + f,
+          new Document(
+              "$substrCP",
+              List.of(
+                  "$$corpus",
+                  randomInt(CORPUS_CHARS - MEAN_STRING_LENGTH),
+                  new Document("$add", List.of(randomInt(MEAN_STRING_LENGTH), 1)))));
+    }
+    return List.of(
+        new Document("$match", new Document("_id", new Document("$mod", List.of(pipelines, p)))),
+        new Document(
+            "$project",
+            new Document("_id", 0).append("n", new Document("$range", List.of("$from", "$to")))),
+        new Document("$unwind", "$n"),
+        new Document("$set", new Document("n", new Document("$toLong", "$n"))),
+        new Document("$replaceWith", shape),
+        new Document(
+            "$merge",
+            new Document("into", into)
+                .append("on", "_id")
+                .append("whenMatched", "keepExisting")
+                .append("whenNotMatched", "insert")));
+  }
+
+  // A whole number in [0, bound)
+  private static Document randomInt(int bound) {
+    return new Document("$toInt", randomFloor(bound));
+  }
+
+  private static Document randomLong(long bound) {
+    return new Document("$toLong", randomFloor(bound));
+  }
+
+  private static Document randomFloor(Number bound) {
+    Document rand = new Document("$rand", new Document());
+    return new Document("$floor", new Document("$multiply", List.of(rand, bound)));
+  }
+}
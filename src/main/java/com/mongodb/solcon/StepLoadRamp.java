@@ -0,0 +1,146 @@
+package com.mongodb.solcon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Finds the saturation knee of a workload in a single variant. Rather than one variant per
+thread count, a variant with a "ramp" section starts startThreads workers and adds stepThreads
+more every stepSecs, up to maxThreads. Each step's throughput and latency is recorded and the
+ramp stops early once a step fails to add minGainPercent to the best throughput so far, or its
+p99 goes over maxP99Ms. The knee is the last step that was still gaining within the p99 limit.
+
+    "ramp": { "startThreads": 10, "stepThreads": 10, "maxThreads": 400, "stepSecs": 30,
+              "minGainPercent": 5, "maxP99Ms": 50 }
+ */
+
+public class StepLoadRamp {
+  private static final Logger logger = LoggerFactory.getLogger(StepLoadRamp.class);
+
+  public interface WorkerFactory {
+    BaseMongoTest create(int threadNo, int maxThreads) throws ReflectiveOperationException;
+  }
+
+  final int startThreads;
+  final int stepThreads;
+  final int maxThreads;
+  final long stepMillis;
+  final double minGainPercent;
+  final double maxP99Millis;
+
+  public StepLoadRamp(Document ramp) {
+    startThreads = number(ramp, "startThreads", 10).intValue();
+    stepThreads = number(ramp, "stepThreads", startThreads).intValue();
+    maxThreads = number(ramp, "maxThreads", 400).intValue();
+    stepMillis = (long) (number(ramp, "stepSecs", 30).doubleValue() * 1000);
+    minGainPercent = number(ramp, "minGainPercent", 5).doubleValue();
+    maxP99Millis = number(ramp, "maxP99Ms", 0).doubleValue(); // 0 = no latency limit
+    if (startThreads < 1 || stepThreads < 1) {
+      throw new IllegalArgumentException("ramp needs startThreads and stepThreads of at least 1");
+    }
+    if (maxThreads < startThreads) {
+      throw new IllegalArgumentException("ramp maxThreads is below startThreads");
+    }
+  }
+
+  private static Number number(Document doc, String key, Number defaultValue) {
+    Object value = doc.get(key);
+    return value instanceof Number ? (Number) value : defaultValue;
+  }
+
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+  /**
+   * Runs the ramp on an already started RunContext. Returns the latency over the whole ramp and
+   * puts the per step curve and the knee into testReturnInfo under "ramp".
+   */
+  public LatencyHistogram run(
+      RunContext runContext,
+      WorkerFactory factory,
+      ExecutorService executorService,
+      List<BaseMongoTest> workers,
+      Map<String, Object> testReturnInfo)
+      throws ReflectiveOperationException, InterruptedException {
+
+    runContext.setRunUntilStopped(true);
+    List<Document> steps = new ArrayList<>();
+    Document knee = null;
+    String stopReason = "reached maxThreads";
+    double bestOpsPerSec = 0;
+    LatencyHistogram previous = new LatencyHistogram();
+    LatencyHistogram current = new LatencyHistogram();
+    LatencyHistogram step = new LatencyHistogram();
+
+    for (int threads = startThreads; threads <= maxThreads; threads += stepThreads) {
+      List<BaseMongoTest> added = new ArrayList<>();
+      for (int threadNo = workers.size(); threadNo < threads; threadNo++) {
+        added.add(factory.create(threadNo, maxThreads));
+      }
+      workers.addAll(added);
+      for (BaseMongoTest worker : added) {
+        executorService.submit(worker);
+      }
+      logger.info("Ramp step {} threads for {}s", threads, stepMillis / 1000);
+
+      long stepStart = System.nanoTime();
+      Thread.sleep(stepMillis);
+      double stepSecs = (System.nanoTime() - stepStart) / 1e9;
+
+      current.reset();
+      runContext.mergeLatencyInto(current, workers);
+      step.setToDifference(current, previous);
+      LatencyHistogram swap = previous;
+      previous = current;
+      current = swap;
+
+      double opsPerSec = step.getTotalCount() / stepSecs;
+      double p99Millis = step.getValueAtPercentile(99) / 1e6;
+      Document point =
+          new Document("threads", threads)
+              .append("opsPerSec", Math.round(opsPerSec))
+              .append("p50", step.getValueAtPercentile(50) / 1000.0)
+              .append("p99", step.getValueAtPercentile(99) / 1000.0)
+              .append("errors", step.getErrorCount());
+      steps.add(point);
+      logger.info("Ramp step {}", point.toJson());
+
+      if (maxP99Millis > 0 && p99Millis > maxP99Millis) {
+        stopReason = String.format("p99 %.1fms over limit %.1fms", p99Millis, maxP99Millis);
+        break;
+      }
+      if (knee != null && opsPerSec < bestOpsPerSec * (1 + minGainPercent / 100.0)) {
+        stopReason =
+            String.format("throughput gain under %.1f%% at %d threads", minGainPercent, threads);
+        break;
+      }
+      knee = point;
+      bestOpsPerSec = Math.max(bestOpsPerSec, opsPerSec);
+    }
+
+    runContext.requestStop();
+    executorService.shutdown();
+    //noinspection ResultOfMethodCallIgnored
+    executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+    logger.info("Ramp stopped: {}, knee at {}", stopReason, knee == null ? "none" : knee.toJson());
+    if (testReturnInfo != null) {
+      testReturnInfo.put(
+          "ramp",
+          new Document("steps", steps).append("knee", knee).append("stopReason", stopReason));
+    }
+    return runContext.mergedLatency(workers);
+  }
+
+  /** A worker list the sampler can safely read while the ramp is adding to it. */
+  public static List<BaseMongoTest> newWorkerList() {
+    return new CopyOnWriteArrayList<>();
+  }
+}
@@ -0,0 +1,55 @@
+package com.mongodb.solcon;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/* One block of pseudo English text for the whole process that generators take their string
+values from, rather than every worker building its own. It is generated once from a fixed seed
+so every run and every client host sees the same text. The text is plain ASCII so its UTF-8
+encoding is one byte per character - an offset and length mean the same thing in the String and
+in the encoded bytes, and encoded text can be copied out without re-encoding. */
+
+public final class TextCorpus {
+  public static final int SIZE = 1024 * 1024;
+  public static final long SEED = 0x5eedL;
+  private static volatile TextCorpus shared;
+
+  private final String text;
+  private final ByteBuffer utf8; // Direct and read only
+
+  private TextCorpus(int size, long seed) {
+    text = Utils.BigRandomText(size, new Random(seed));
+    byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+    buffer.put(encoded).flip();
+    utf8 = buffer.asReadOnlyBuffer();
+  }
+
+  public static TextCorpus get() {
+    TextCorpus corpus = shared;
+    if (corpus == null) {
+      synchronized (TextCorpus.class) {
+        corpus = shared;
+        if (corpus == null) {
+          corpus = new TextCorpus(SIZE, SEED);
+          shared = corpus;
+        }
+      }
+    }
+    return corpus;
+  }
+
+  public int size() {
+    return text.length();
+  }
+
+  public String substring(int offset, int length) {
+    return text.substring(offset, offset + length);
+  }
+
+  /** Copies encoded bytes straight into an output buffer. */
+  public void copyTo(int offset, byte[] dest, int destOffset, int length) {
+    utf8.get(offset, dest, destOffset, length);
+  }
+}
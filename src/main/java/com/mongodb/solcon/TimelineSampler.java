@@ -0,0 +1,87 @@
+package com.mongodb.solcon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Samples the workers' cumulative histograms on a fixed interval (1s unless the test sets
+timelineIntervalSecs) and keeps what happened in each interval, so stalls, eviction storms and
+throughput decay during a run are visible rather than averaged away. The workers are read
+without locking, a sample may be off by the handful of operations in flight as it is taken. */
+
+public class TimelineSampler {
+  private static final Logger logger = LoggerFactory.getLogger(TimelineSampler.class);
+  private final RunContext runContext;
+  private final List<BaseMongoTest> workers;
+  private final long intervalMillis;
+  private final List<Document> timeline = new ArrayList<>();
+  private final ScheduledExecutorService scheduler;
+  private LatencyHistogram previous = new LatencyHistogram();
+  private LatencyHistogram current = new LatencyHistogram();
+  private final LatencyHistogram interval = new LatencyHistogram();
+  private long previousNanos;
+
+  public TimelineSampler(RunContext runContext, List<BaseMongoTest> workers, Document testConfig) {
+    this.runContext = runContext;
+    this.workers = workers;
+    this.intervalMillis =
+        (long) (RunContext.numberFromConfig(testConfig, "timelineIntervalSecs", 1) * 1000);
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "timeline-sampler");
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  public void start() {
+    previousNanos = runContext.getStartNanos();
+    scheduler.scheduleAtFixedRate(
+        this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void sample() {
+    long now = System.nanoTime();
+    current.reset();
+    runContext.mergeLatencyInto(current, workers);
+    interval.setToDifference(current, previous);
+
+    double seconds = (now - previousNanos) / 1e9;
+    Document point = new Document();
+    point.put("t", Math.round((now - runContext.getStartNanos()) / 1e6) / 1000.0);
+    point.put("ops", interval.getTotalCount());
+    point.put("opsPerSec", Math.round(interval.getTotalCount() / seconds));
+    point.put("p50", interval.getValueAtPercentile(50) / 1000.0);
+    point.put("p99", interval.getValueAtPercentile(99) / 1000.0);
+    point.put("errors", interval.getErrorCount());
+    timeline.add(point);
+    logger.debug("Timeline {}", point.toJson());
+
+    LatencyHistogram swap = previous;
+    previous = current;
+    current = swap;
+    previousNanos = now;
+  }
+
+  /** Stops sampling, takes a final partial sample and returns the timeline. */
+  public List<Document> stop() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (System.nanoTime() - previousNanos > intervalMillis * 100_000L) {
+        sample(); // Only if at least a tenth of an interval is left over
+      }
+      return timeline;
+    }
+  }
+}
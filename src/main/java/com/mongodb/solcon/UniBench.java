@@ -7,14 +7,65 @@ import org.slf4j.LoggerFactory;
 public class UniBench {
   private static final Logger logger = LoggerFactory.getLogger(UniBench.class);
 
+  private static void usage() {
+    System.out.println("Usage: java -jar UniBench.jar <config.json>");
+    System.out.println("       java -jar UniBench.jar --workers <n> [--port <port>] <config.json>");
+    System.out.println("       java -jar UniBench.jar --worker <coordinatorhost>[:<port>]");
+  }
+
   public static void main(String[] args) {
     LogManager.getLogManager().reset();
     BenchmarkController bmc = new BenchmarkController();
 
     if (args.length < 1) {
-      System.out.println("Usage: java -jar UniBench.jar <config.json>");
+      usage();
       return;
     }
-    bmc.runBenchmark(args[0]);
+
+    try {
+      // Worker process - takes its instructions from a coordinator
+      if (args[0].equals("--worker")) {
+        if (args.length < 2) {
+          usage();
+          return;
+        }
+        String[] hostPort = args[1].split(":");
+        int port =
+            hostPort.length > 1
+                ? Integer.parseInt(hostPort[1])
+                : DistributedCoordinator.DEFAULT_PORT;
+        new DistributedWorker(hostPort[0], port, bmc).run();
+        return;
+      }
+
+      // Coordinator process - runs the config but hands the load to n workers
+      int nWorkers = 0;
+      int port = DistributedCoordinator.DEFAULT_PORT;
+      int argNo = 0;
+      while (argNo < args.length - 1 && args[argNo].startsWith("--")) {
+        if (args[argNo].equals("--workers")) {
+          nWorkers = Integer.parseInt(args[argNo + 1]);
+        } else if (args[argNo].equals("--port")) {
+          port = Integer.parseInt(args[argNo + 1]);
+        } else {
+          usage();
+          return;
+        }
+        argNo += 2;
+      }
+      if (argNo >= args.length) {
+        usage();
+        return;
+      }
+      if (nWorkers > 0) {
+        bmc.setCoordinator(new DistributedCoordinator(port, nWorkers));
+      }
+      bmc.runBenchmark(args[argNo]);
+    } catch (Exception e) {
+      logger.error("An error occurred: {}", e.getMessage());
+      //noinspection CallToPrintStackTrace
+      e.printStackTrace();
+      System.exit(1);
+    }
   }
 }
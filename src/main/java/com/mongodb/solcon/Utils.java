@@ -1,10 +1,10 @@
 package com.mongodb.solcon;
 
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 public class Utils {
 
-  public static String BigRandomText(int size) {
+  public static String BigRandomText(int size, RandomGenerator rand) {
 
     String lettersByFrequency =
         "eeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeee"
@@ -62,7 +62,6 @@ public class Utils {
     String digits = "0123456789";
     String chars = lettersByFrequency + digits;
 
-    Random rand = new Random();
     StringBuilder sb = new StringBuilder(size);
 
     boolean capitalizeNext = true;
@@ -0,0 +1,316 @@
+package com.mongodb.solcon;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Batches the writes of all the workers of a run on the client, as an application that buffers
+writes would. Turned on with "coalesce" in the variant or at the top level of the test:
+
+    "coalesce": { "maxOps": 100, "maxDelayMs": 2, "stripes": 8, "merge": true }
+
+Writes go to one of stripes buffers by _id, each with its own lock. A buffer is sent as one
+unordered bulkWrite once maxOps writes have been added to it, or when its oldest write has waited
+maxDelayMs - whichever comes first. With merge, increments to an _id already in the buffer are
+added into its $inc rather than sent again, so a hot document gets one write per batch however
+many workers hit it. Submitting blocks until the write is acknowledged, like a group commit, so
+the caller's own latency includes the wait - the thread that fills a buffer or first sees it is
+due sends it.
+
+The results get a "coalescing" section with the logical writes the workers asked for, the
+physical ones sent, the rates of both, how long writes waited before being sent and how long
+each bulkWrite took. */
+
+public class WriteCoalescer {
+  private static final Logger logger = LoggerFactory.getLogger(WriteCoalescer.class);
+
+  private final MongoCollection<RawBsonDocument> collection;
+  private final int maxOps;
+  private final long maxDelayNanos;
+  private final boolean merge;
+  private final Stripe[] stripes;
+  private final BulkWriteOptions options = new BulkWriteOptions().ordered(false);
+  private final AtomicLong firstSubmitNanos = new AtomicLong();
+  private final AtomicLong lastFlushNanos = new AtomicLong();
+
+  public WriteCoalescer(
+      MongoCollection<RawBsonDocument> collection,
+      int maxOps,
+      double maxDelayMs,
+      int nStripes,
+      boolean merge) {
+    if (maxOps < 1 || nStripes < 1) {
+      throw new IllegalArgumentException("coalesce needs maxOps and stripes of at least 1");
+    }
+    this.collection = collection;
+    this.maxOps = maxOps;
+    this.maxDelayNanos = (long) (maxDelayMs * 1_000_000);
+    this.merge = merge;
+    stripes = new Stripe[nStripes];
+    for (int i = 0; i < nStripes; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /** The variant's coalesce settings, or the test's, or null if writes aren't coalesced. */
+  public static Document specFromConfig(Document testConfig) {
+    Document variant = testConfig.get("variant", Document.class);
+    Object spec = variant != null ? variant.get("coalesce") : null;
+    if (spec == null) {
+      spec = testConfig.get("coalesce");
+    }
+    if (Boolean.TRUE.equals(spec)) {
+      return new Document();
+    }
+    return spec instanceof Document ? (Document) spec : null;
+  }
+
+  public static WriteCoalescer create(Document spec, MongoCollection<RawBsonDocument> collection) {
+    WriteCoalescer coalescer =
+        new WriteCoalescer(
+            collection,
+            spec.getInteger("maxOps", 100),
+            spec.get("maxDelayMs") instanceof Number
+                ? ((Number) spec.get("maxDelayMs")).doubleValue()
+                : 2,
+            spec.getInteger("stripes", Runtime.getRuntime().availableProcessors()),
+            spec.getBoolean("merge", true));
+    logger.info("Coalescing writes with {}", spec.toJson());
+    return coalescer;
+  }
+
+  /**
+   * Adds the fields of inc to the document with this _id, returning once that is written. False
+   * if the batch it went in failed.
+   */
+  public boolean increment(Object id, Document inc) {
+    return submit(id, inc, null);
+  }
+
+  /** Any other write, which is batched but never merged. */
+  public boolean write(Object id, WriteModel<RawBsonDocument> model) {
+    return submit(id, null, model);
+  }
+
+  private boolean submit(Object id, Document inc, WriteModel<RawBsonDocument> model) {
+    long submitted = System.nanoTime();
+    firstSubmitNanos.compareAndSet(0, submitted);
+    Stripe stripe = stripes[Math.floorMod(id.hashCode() * 0x9E3779B9, stripes.length)];
+    Batch batch;
+    Batch full = null;
+    stripe.lock.lock();
+    try {
+      batch = stripe.pending;
+      batch.add(id, inc, model, submitted);
+      if (batch.size >= maxOps) {
+        full = stripe.detach(batch);
+      }
+    } finally {
+      stripe.lock.unlock();
+    }
+    if (full != null) {
+      flush(stripe, full);
+    }
+    try {
+      long wait = batch.firstSubmitted + maxDelayNanos - System.nanoTime();
+      if (wait <= 0 || !batch.done.await(wait, TimeUnit.NANOSECONDS)) {
+        // Due and nobody has sent it yet, so we do
+        Batch due;
+        stripe.lock.lock();
+        try {
+          due = stripe.pending == batch ? stripe.detach(batch) : null;
+        } finally {
+          stripe.lock.unlock();
+        }
+        if (due != null) {
+          flush(stripe, due);
+        }
+        batch.done.await();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !batch.failed;
+  }
+
+  private void flush(Stripe stripe, Batch batch) {
+    List<WriteModel<RawBsonDocument>> models = new ArrayList<>(batch.models);
+    for (Map.Entry<Object, Document> entry : batch.increments.entrySet()) {
+      models.add(
+          new UpdateOneModel<>(
+              Filters.eq("_id", entry.getKey()), new Document("$inc", entry.getValue())));
+    }
+    long start = System.nanoTime();
+    BulkWriteResult result = null;
+    try {
+      result = collection.bulkWrite(models, options);
+    } catch (Exception e) {
+      batch.failed = true;
+      if (stripe.failedBatches == 0) {
+        logger.error("Coalesced bulkWrite failed", e);
+      }
+    }
+    long end = System.nanoTime();
+    lastFlushNanos.accumulateAndGet(end, Math::max);
+    stripe.lock.lock();
+    try {
+      stripe.batches++;
+      stripe.physicalWrites += models.size();
+      stripe.batchLatency.recordValue(end - start);
+      if (batch.failed) {
+        stripe.failedBatches++;
+        stripe.batchLatency.recordError();
+      } else {
+        stripe.notModified += models.size() - result.getModifiedCount();
+      }
+    } finally {
+      stripe.lock.unlock();
+    }
+    batch.done.countDown();
+  }
+
+  /** Totals so far, as a document for the results. */
+  public Document summary() {
+    long logical = 0;
+    long physical = 0;
+    long batches = 0;
+    long failedBatches = 0;
+    long notModified = 0;
+    LatencyHistogram waitLatency = new LatencyHistogram();
+    LatencyHistogram batchLatency = new LatencyHistogram();
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
+      try {
+        logical += stripe.logicalWrites;
+        physical += stripe.physicalWrites;
+        batches += stripe.batches;
+        failedBatches += stripe.failedBatches;
+        notModified += stripe.notModified;
+        waitLatency.add(stripe.waitLatency);
+        batchLatency.add(stripe.batchLatency);
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+    double seconds = Math.max(0, lastFlushNanos.get() - firstSubmitNanos.get()) / 1e9;
+    Document summary =
+        new Document("logicalWrites", logical)
+            .append("physicalWrites", physical)
+            .append("batches", batches)
+            .append("failedBatches", failedBatches)
+            .append("notModified", notModified);
+    if (seconds > 0) {
+      summary.append("logicalWritesPerSec", Math.round(logical / seconds));
+      summary.append("physicalWritesPerSec", Math.round(physical / seconds));
+      summary.append("batchesPerSec", Math.round(batches / seconds));
+    }
+    if (physical > 0) {
+      summary.append("logicalPerPhysical", logical / (double) physical);
+    }
+    if (batches > 0) {
+      summary.append("logicalPerBatch", logical / (double) batches);
+    }
+    return summary
+        .append("waitLatency", waitLatency.toDocument())
+        .append("batchLatency", batchLatency.toDocument());
+  }
+
+  /**
+   * Puts the totals in the results. Every worker calls this as it finishes, and as writes block
+   * until sent the last to finish has the complete figures, so the largest is kept.
+   */
+  public void report(ConcurrentHashMap<String, Object> testReturnInfo) {
+    Document mine = summary();
+    testReturnInfo.compute(
+        "coalescing",
+        (k, v) ->
+            v == null || ((Document) v).getLong("logicalWrites") <= mine.getLong("logicalWrites")
+                ? mine
+                : v);
+  }
+
+  private class Stripe {
+    final ReentrantLock lock = new ReentrantLock();
+    Batch pending = new Batch();
+    // All guarded by lock
+    long logicalWrites;
+    long physicalWrites;
+    long batches;
+    long failedBatches;
+    long notModified;
+    final LatencyHistogram waitLatency = new LatencyHistogram();
+    final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    // Takes the batch out to be sent, call holding lock
+    Batch detach(Batch batch) {
+      pending = new Batch();
+      long now = System.nanoTime();
+      for (int i = 0; i < batch.size; i++) {
+        waitLatency.recordValue(now - batch.submitted[i]);
+      }
+      logicalWrites += batch.size;
+      return batch;
+    }
+  }
+
+  private class Batch {
+    final Map<Object, Document> increments = new LinkedHashMap<>();
+    final List<WriteModel<RawBsonDocument>> models = new ArrayList<>();
+    final long[] submitted = new long[maxOps];
+    final CountDownLatch done = new CountDownLatch(1);
+    int size;
+    long firstSubmitted;
+    volatile boolean failed;
+
+    void add(Object id, Document inc, WriteModel<RawBsonDocument> model, long now) {
+      if (size == 0) {
+        firstSubmitted = now;
+      }
+      submitted[size++] = now;
+      if (model != null) {
+        models.add(model);
+      } else if (!merge) {
+        models.add(new UpdateOneModel<>(Filters.eq("_id", id), new Document("$inc", inc)));
+      } else {
+        Document fields = increments.get(id);
+        if (fields == null) {
+          increments.put(id, new Document(inc));
+        } else {
+          for (Map.Entry<String, Object> field : inc.entrySet()) {
+            fields.merge(field.getKey(), field.getValue(), WriteCoalescer::add);
+          }
+        }
+      }
+    }
+  }
+
+  private static Object add(Object a, Object b) {
+    Number x = (Number) a;
+    Number y = (Number) b;
+    if (x instanceof Double || y instanceof Double) {
+      return x.doubleValue() + y.doubleValue();
+    }
+    long sum = x.longValue() + y.longValue();
+    if (x instanceof Integer && y instanceof Integer && sum == (int) sum) {
+      return (int) sum;
+    }
+    return sum;
+  }
+}
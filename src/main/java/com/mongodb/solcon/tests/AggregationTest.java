@@ -0,0 +1,229 @@
+package com.mongodb.solcon.tests;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.client.MongoClient;
+import com.mongodb.solcon.KeyDistribution;
+import com.mongodb.solcon.QueryTemplate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Runs an aggregation pipeline from the variant on many threads. The data is the same as
+QueryTest's - documents in groups with group, group_seq and group_seq_i fields, indexed on group
+- so this only replaces how a run uses it. Test specific parameters, in the variant:
+    * pipeline - the stages, each a template that can use the QueryTemplate placeholders
+    * nQueries / testTimeSecs - as QueryTest
+    * allowDiskUse - passed to aggregate(), default false
+    * explainEvery - how often, in operations per worker, to run an explain of the pipeline to
+      see what the server had to look at, default 1000, 0 for never
+
+Latency is per pipeline run and includes reading all of its results. The results also get an
+"aggregation" section with the documents returned and, from the sampled explains, the index keys
+and documents examined per run - the executionStats of every stage and shard are added up, as
+where they appear depends on the pipeline, the server version and whether it is sharded. */
+
+public class AggregationTest extends QueryTest {
+  private static final Logger logger = LoggerFactory.getLogger(AggregationTest.class);
+
+  List<QueryTemplate> stageTemplates;
+  boolean allowDiskUse;
+  int explainEvery;
+
+  public AggregationTest(
+      MongoClient client,
+      Document config,
+      long nThreads,
+      long threadNo,
+      ConcurrentHashMap<String, Object> testReturnInfo) {
+    super(client, config, nThreads, threadNo, testReturnInfo);
+  }
+
+  @Override
+  public void prepare() {
+    Document variant = testConfig.get("variant", Document.class);
+    List<Document> stages = variant.getList("pipeline", Document.class);
+    if (stages == null || stages.isEmpty()) {
+      throw new IllegalArgumentException("AggregationTest needs a pipeline in each variant");
+    }
+    allowDiskUse = variant.getBoolean("allowDiskUse", false);
+    explainEvery = variant.getInteger("explainEvery", testConfig.getInteger("explainEvery", 1000));
+
+    // Compiled once for all the workers so SEQ counts across them
+    stageTemplates =
+        runContext.shared(
+            "pipelineTemplate",
+            () -> {
+              Document keyDistribution = KeyDistribution.specFromConfig(testConfig);
+              List<QueryTemplate> templates = new ArrayList<>();
+              for (Document stage : stages) {
+                templates.add(QueryTemplate.compile(stage, keyDistribution));
+              }
+              return templates;
+            });
+
+    if (threadNo == 0) {
+      statusBefore = mongoClient.getDatabase("admin").runCommand(new Document("serverStatus", 1));
+      List<RawBsonDocument> pipeline = nextPipeline();
+      logger.info("Template: {}", stages);
+      logger.info("Example: {}", pipeline);
+      Document explain = explain(pipeline);
+      if (explain.toJson().contains("COLLSCAN")) {
+        logger.info("ALERT: **** COLLECTION SCAN IN TEST ****");
+      }
+      logger.debug("Explain: {}", explain.toJson());
+    }
+  }
+
+  private List<RawBsonDocument> nextPipeline() {
+    List<RawBsonDocument> pipeline = new ArrayList<>(stageTemplates.size());
+    for (QueryTemplate stage : stageTemplates) {
+      pipeline.add(stage.generate(random));
+    }
+    return pipeline;
+  }
+
+  private Document explain(List<RawBsonDocument> pipeline) {
+    return collection
+        .aggregate(pipeline)
+        .allowDiskUse(allowDiskUse)
+        .explain(ExplainVerbosity.EXECUTION_STATS);
+  }
+
+  @Override
+  public void run() {
+    Document variant = testConfig.get("variant", Document.class);
+    int nQueries = variant.getInteger("nQueries", 100000);
+    int nQueriesPerThread = Math.toIntExact(nQueries / nThreads);
+
+    int testTimeSecsGlobal = testConfig.getInteger("testTimeSecs", 0);
+    int testTimeSecsVariant = variant.getInteger("testTimeSecs", 0);
+    int testTimeSecs = testTimeSecsVariant > 0 ? testTimeSecsVariant : testTimeSecsGlobal;
+    if (testTimeSecs > 0 && threadNo == 0) {
+      logger.info("Test time is set to {} seconds", testTimeSecs);
+    }
+    if (testReturnInfo != null) {
+      testReturnInfo.putIfAbsent("nQueries", 0);
+    }
+
+    long docsReturned = 0;
+    long bytesReturned = 0;
+    long explains = 0;
+    long keysExamined = 0;
+    long docsExamined = 0;
+    long explainedReturned = 0; // What the explained runs returned, to compare with examined
+    // Stagger the explains so the workers don't all do theirs at once
+    long nextExplain = explainEvery > 0 ? (threadNo % explainEvery) + 1 : Long.MAX_VALUE;
+
+    long startSecs = new Date().getTime();
+    int nQueriesRun;
+    for (nQueriesRun = 0;
+        keepRunning(nQueriesRun, nQueriesPerThread, startSecs, testTimeSecs);
+        nQueriesRun++) {
+      List<RawBsonDocument> pipeline = nextPipeline();
+      long returned = 0;
+      long opStart = nextOperationStart();
+      try {
+        for (RawBsonDocument doc : collection.aggregate(pipeline).allowDiskUse(allowDiskUse)) {
+          returned++;
+          bytesReturned += doc.getByteBuffer().remaining();
+        }
+        recordLatency(opStart);
+      } catch (Exception e) {
+        logger.error("Error running pipeline {}", pipeline, e);
+        recordLatency(opStart);
+        recordError();
+        continue;
+      }
+      docsReturned += returned;
+
+      // Untimed, and not counted as an operation
+      if (nQueriesRun + 1 == nextExplain) {
+        nextExplain += explainEvery;
+        try {
+          long[] examined = new long[2];
+          addExamined(explain(pipeline), examined);
+          keysExamined += examined[0];
+          docsExamined += examined[1];
+          explainedReturned += returned;
+          explains++;
+        } catch (Exception e) {
+          logger.warn("Explain failed: {}", e.getMessage());
+        }
+      }
+    }
+
+    if (testReturnInfo != null) {
+      Integer finalNQueriesRun = nQueriesRun;
+      testReturnInfo.compute(
+          "nQueries", (k, v) -> (v == null) ? finalNQueriesRun : (Integer) v + finalNQueriesRun);
+      Document mine =
+          new Document("docsReturned", docsReturned)
+              .append("bytesReturned", bytesReturned)
+              .append("explains", explains)
+              .append("keysExamined", keysExamined)
+              .append("docsExamined", docsExamined)
+              .append("explainedReturned", explainedReturned);
+      testReturnInfo.compute("aggregation", (k, v) -> mergeAggregationStats((Document) v, mine));
+    }
+
+    if (threadNo == 0 && statusBefore != null) {
+      Document statusAfter =
+          mongoClient.getDatabase("admin").runCommand(new Document("serverStatus", 1));
+      showCacheRead(statusBefore, statusAfter);
+    }
+  }
+
+  // Adds up totalKeysExamined and totalDocsExamined wherever they appear in an explain. Where a
+  // document has them they already cover everything below it (a sharded find's merge stage has
+  // each shard's too) so we stop there
+  static void addExamined(Object node, long[] examined) {
+    if (node instanceof Document) {
+      Document doc = (Document) node;
+      if (doc.containsKey("totalKeysExamined") || doc.containsKey("totalDocsExamined")) {
+        examined[0] += count(doc.get("totalKeysExamined"));
+        examined[1] += count(doc.get("totalDocsExamined"));
+        return;
+      }
+      for (Object value : doc.values()) {
+        addExamined(value, examined);
+      }
+    } else if (node instanceof List<?>) {
+      for (Object element : (List<?>) node) {
+        addExamined(element, examined);
+      }
+    }
+  }
+
+  private static long count(Object value) {
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+
+  // Sums the counters from each worker and works out the per run figures from the totals
+  private Document mergeAggregationStats(Document soFar, Document mine) {
+    Document merged = new Document();
+    for (String key : mine.keySet()) {
+      long total = mine.getLong(key);
+      if (soFar != null) {
+        total += soFar.getLong(key);
+      }
+      merged.append(key, total);
+    }
+    long runs = (Integer) testReturnInfo.getOrDefault("nQueries", 0);
+    long explains = merged.getLong("explains");
+    if (runs > 0) {
+      merged.append("docsReturnedPerRun", merged.getLong("docsReturned") / (double) runs);
+    }
+    if (explains > 0) {
+      merged.append("keysExaminedPerRun", merged.getLong("keysExamined") / (double) explains);
+      merged.append("docsExaminedPerRun", merged.getLong("docsExamined") / (double) explains);
+      long explainedReturned = merged.getLong("explainedReturned");
+      if (explainedReturned > 0) {
+        merged.append(
+            "docsExaminedPerReturned", merged.getLong("docsExamined") / (double) explainedReturned);
+      }
+    }
+    return merged;
+  }
+}
@@ -0,0 +1,345 @@
+package com.mongodb.solcon.tests;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.solcon.BaseMongoTest;
+import com.mongodb.solcon.DatasetFingerprint;
+import com.mongodb.solcon.DocumentFactory;
+import com.mongodb.solcon.DocumentShape;
+import com.mongodb.solcon.KeyDistribution;
+import com.mongodb.solcon.NewIds;
+import com.mongodb.solcon.ParallelLoader;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Writes in bulkWrite batches that mix inserts, updates, replaces and deletes, the way a bulk
+load or ETL job does, rather than a round trip per write. Test specific parameters, in the
+variant or at the top level:
+    * models - weights, e.g. { "insert": 40, "update": 40, "replace": 10, "delete": 10 }
+        insert   a new document from the DocumentFactory with the worker's next new _id
+        update   $inc count on a document picked with the test's KeyDistribution
+        replace  a document picked the same way replaced by a newly generated one
+        delete   the oldest document the worker inserted during the run, once the bulkWrite
+                 it was in has returned - an insert instead if there is none
+    * writeBatchSize - writes per bulkWrite, default 1000
+    * ordered - ordered batches stop at the first error, default false
+    * nWrites - how many writes over all threads, unless testTimeSecs is set
+
+The existing documents have _id 0 to initialDocsToInsert - 1 and anything inserted is removed at
+reset. New _ids come from NewIds, so every worker has its own - in distributed runs too. Latency
+is per batch, the "bulk" section of the results has what the batches did and the writes
+(documents) per second. */
+
+public class BulkWriteTest extends BaseMongoTest {
+  private static final Logger logger = LoggerFactory.getLogger(BulkWriteTest.class);
+  static final String[] MODELS = {"insert", "update", "replace", "delete"};
+  static final int INSERT = 0;
+  static final int UPDATE = 1;
+  static final int REPLACE = 2;
+
+  MongoDatabase database;
+  MongoCollection<RawBsonDocument> collection;
+  int maxFieldsPerObject;
+  DocumentFactory docFactory = null;
+  int docsizeBytes = 2048;
+
+  int initialDocsToInsert;
+  int[] cumulativeWeights;
+  int writeBatchSize;
+  boolean ordered;
+  KeyDistribution keys;
+  NewIds newIds;
+
+  public BulkWriteTest(
+      MongoClient client,
+      Document config,
+      long nThreads,
+      long threadNo,
+      ConcurrentHashMap<String, Object> testReturnInfo) {
+    super(client, config, nThreads, threadNo, testReturnInfo);
+
+    database = mongoClient.getDatabase(testConfig.getString("database"));
+    collection = database.getCollection(testConfig.getString("collection"), RawBsonDocument.class);
+    parseTestParams();
+
+    maxFieldsPerObject =
+        Objects.requireNonNullElse(testConfig.getInteger("maxFieldsPerObject"), 200);
+
+    // Approx Doc Size in bytes - get from top level unless in varaint
+    if (testConfig.getDouble("docSizeKB") != null) {
+      docsizeBytes = (int) (testConfig.getDouble("docSizeKB") * 1024);
+    }
+
+    docFactory = createDocumentFactory(threadNo);
+  }
+
+  void parseTestParams() {
+    initialDocsToInsert = testConfig.getInteger("initialDocsToInsert", 100000);
+  }
+
+  public void prepare() {
+    Document variant = testConfig.get("variant", Document.class);
+    Document weights = variant.get("models", Document.class);
+    if (weights == null) {
+      weights = testConfig.get("models", new Document("insert", 1));
+    }
+    cumulativeWeights = new int[MODELS.length];
+    int total = 0;
+    for (int model = 0; model < MODELS.length; model++) {
+      total += weights.getInteger(MODELS[model], 0);
+      cumulativeWeights[model] = total;
+    }
+    if (total == 0) {
+      throw new IllegalArgumentException("models needs at least one weight above 0");
+    }
+    writeBatchSize =
+        variant.getInteger("writeBatchSize", testConfig.getInteger("writeBatchSize", 1000));
+    ordered = variant.getBoolean("ordered", testConfig.getBoolean("ordered", false));
+
+    // One for all the workers, so sequential and latest keys are shared
+    keys =
+        runContext.shared(
+            "keys", () -> KeyDistribution.fromConfig(testConfig, 0, initialDocsToInsert));
+    // Carry on from anything a warmup inserted rather than colliding with it
+    long base =
+        runContext.shared(
+            "newIdBase", () -> Math.max(initialDocsToInsert, highestInsertedId() + 1));
+    newIds = new NewIds(base, threadNo, nThreads);
+
+    if (threadNo == 0) {
+      logger.info(
+          "Bulk writes of {} {} with weights {}",
+          writeBatchSize,
+          ordered ? "ordered" : "unordered",
+          weights.toJson());
+    }
+  }
+
+  // The highest _id inserted since the reset, or -1 if there are none
+  private long highestInsertedId() {
+    RawBsonDocument doc =
+        collection
+            .find(Filters.gte("_id", initialDocsToInsert))
+            .sort(new Document("_id", -1))
+            .projection(new Document("_id", 1))
+            .first();
+    return doc == null ? -1 : doc.getNumber("_id").longValue();
+  }
+
+  public void run() {
+    Document variant = testConfig.get("variant", Document.class);
+    int nWrites = variant.getInteger("nWrites", 1000000);
+    int nBatchesPerThread = Math.toIntExact(nWrites / nThreads / writeBatchSize);
+    int testTimeSecsGlobal = testConfig.getInteger("testTimeSecs", 0);
+    int testTimeSecsVariant = variant.getInteger("testTimeSecs", 0);
+    int testTimeSecs = testTimeSecsVariant > 0 ? testTimeSecsVariant : testTimeSecsGlobal;
+    if (testTimeSecs > 0 && threadNo == 0) {
+      logger.info("Test time is set to {} seconds", testTimeSecs);
+    }
+    if (testReturnInfo != null) {
+      testReturnInfo.putIfAbsent("nBatches", 0);
+    }
+
+    BulkWriteOptions options = new BulkWriteOptions().ordered(ordered);
+    Bson increment = Updates.inc("count", 1);
+    List<WriteModel<RawBsonDocument>> batch = new ArrayList<>(writeBatchSize);
+    long[] requested = new long[MODELS.length];
+    long inserted = 0;
+    long matched = 0;
+    long modified = 0;
+    long deleted = 0;
+    long failed = 0;
+    long bytes = 0;
+
+    long startSecs = new Date().getTime();
+    long startNanos = System.nanoTime();
+    int nBatchesRun;
+    for (nBatchesRun = 0;
+        keepRunning(nBatchesRun, nBatchesPerThread, startSecs, testTimeSecs);
+        nBatchesRun++) {
+      batch.clear();
+      for (int w = 0; w < writeBatchSize; w++) {
+        int model = chooseModel();
+        switch (model) {
+          case INSERT:
+            RawBsonDocument doc = newDocument(newIds.next());
+            bytes += doc.getByteBuffer().remaining();
+            batch.add(new InsertOneModel<>(doc));
+            break;
+          case UPDATE:
+            batch.add(new UpdateOneModel<>(Filters.eq("_id", keys.next(random)), increment));
+            break;
+          case REPLACE:
+            long id = keys.next(random);
+            RawBsonDocument replacement = newDocument(id);
+            bytes += replacement.getByteBuffer().remaining();
+            batch.add(new ReplaceOneModel<>(Filters.eq("_id", id), replacement));
+            break;
+          default: // Delete
+            // Only from earlier batches, never an insert that is still on its way
+            long deleteId = newIds.nextToDelete();
+            if (deleteId >= 0) {
+              batch.add(new DeleteOneModel<>(Filters.eq("_id", deleteId)));
+            } else {
+              model = INSERT;
+              RawBsonDocument instead = newDocument(newIds.next());
+              bytes += instead.getByteBuffer().remaining();
+              batch.add(new InsertOneModel<>(instead));
+            }
+        }
+        requested[model]++;
+      }
+
+      long opStart = nextOperationStart();
+      BulkWriteResult result;
+      try {
+        result = collection.bulkWrite(batch, options);
+        recordLatency(opStart);
+      } catch (MongoBulkWriteException e) {
+        recordLatency(opStart);
+        recordError();
+        failed += e.getWriteErrors().size();
+        if (failed == e.getWriteErrors().size()) {
+          logger.error("Error in bulk write: {}", e.getWriteErrors().get(0));
+        }
+        result = e.getWriteResult();
+      } catch (Exception e) {
+        recordLatency(opStart);
+        recordError();
+        logger.error("Error in bulk write", e);
+        failed += batch.size();
+        continue;
+      } finally {
+        // Failed inserts too, the id is finished with either way
+        long newest = newIds.acknowledge();
+        if (newest >= 0) {
+          keys.inserted(newest);
+        }
+      }
+      inserted += result.getInsertedCount();
+      matched += result.getMatchedCount();
+      modified += result.getModifiedCount();
+      deleted += result.getDeletedCount();
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    if (testReturnInfo != null) {
+      Integer finalNBatchesRun = nBatchesRun;
+      testReturnInfo.compute(
+          "nBatches", (k, v) -> (v == null) ? finalNBatchesRun : (Integer) v + finalNBatchesRun);
+      long writes = (long) nBatchesRun * writeBatchSize;
+      Document mine =
+          new Document("writes", writes)
+              .append("inserted", inserted)
+              .append("matched", matched)
+              .append("modified", modified)
+              .append("deleted", deleted)
+              .append("failed", failed)
+              .append("bytesWritten", bytes);
+      for (int model = 0; model < MODELS.length; model++) {
+        mine.append(MODELS[model] + "Models", requested[model]);
+      }
+      // Each worker's rate over its own run time, summed, as every worker runs for the whole test
+      double writesPerSec = seconds > 0 ? writes / seconds : 0;
+      double mbPerSec = seconds > 0 ? bytes / seconds / 1048576 : 0;
+      testReturnInfo.compute(
+          "bulk", (k, v) -> mergeBulkStats((Document) v, mine, writesPerSec, mbPerSec));
+    }
+  }
+
+  private RawBsonDocument newDocument(long id) {
+    return docFactory.createDocument(new Document("_id", id).append("count", 0));
+  }
+
+  private int chooseModel() {
+    int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    int model = 0;
+    while (pick >= cumulativeWeights[model]) {
+      model++;
+    }
+    return model;
+  }
+
+  private static Document mergeBulkStats(
+      Document soFar, Document mine, double writesPerSec, double mbPerSec) {
+    Document merged = new Document();
+    for (String key : mine.keySet()) {
+      merged.append(key, mine.getLong(key) + (soFar == null ? 0 : soFar.getLong(key)));
+    }
+    if (soFar != null) {
+      writesPerSec += soFar.getDouble("writesPerSec");
+      mbPerSec += soFar.getDouble("MBPerSec");
+    }
+    merged.append("writesPerSec", Math.round(writesPerSec * 10) / 10.0);
+    merged.append("MBPerSec", Math.round(mbPerSec * 10) / 10.0);
+    return merged;
+  }
+
+  // Factories are single threaded - each worker and each loader thread gets its own
+  DocumentFactory createDocumentFactory(long factoryThreadNo) {
+    return new DocumentFactory(
+        factoryThreadNo,
+        "OBJECTID",
+        docsizeBytes,
+        maxFieldsPerObject,
+        DocumentShape.fromConfig(testConfig, maxFieldsPerObject));
+  }
+
+  // Reset is called for each variant
+
+  public void GenerateData() {
+    parseTestParams();
+
+    DatasetFingerprint dataset =
+        new DatasetFingerprint(
+            database,
+            collection.getNamespace().getCollectionName(),
+            DatasetFingerprint.fingerprintOf(
+                testConfig, "initialDocsToInsert", "docSizeKB", "maxFieldsPerObject", "shape"));
+    DatasetFingerprint.State state = dataset.check();
+    if (state == DatasetFingerprint.State.COMPLETE) {
+      logger.info(
+          "Collection already contains {} documents - not regenerating", initialDocsToInsert);
+    } else if (initialDocsToInsert > 0) {
+      if (state == DatasetFingerprint.State.NONE) {
+        collection.drop();
+      }
+      loadInfo =
+          new ParallelLoader(testConfig)
+              .load(
+                  collection,
+                  initialDocsToInsert,
+                  this::createDocumentFactory,
+                  (factory, doc) ->
+                      factory.createDocument(new Document("_id", doc).append("count", 0)),
+                  dataset);
+    }
+  }
+
+  public void TestReset() {
+    parseTestParams();
+    logger.info("Deleting anything that has been inserted beyond {}", initialDocsToInsert);
+    collection.deleteMany(Filters.gte("_id", initialDocsToInsert));
+    GenerateData(); // In case we blew the cluster away - NoOp if exists
+  }
+
+  // WarmCache is called before each rune
+  public void WarmCache() {
+    logger.info("No cache warm up was required");
+  }
+}
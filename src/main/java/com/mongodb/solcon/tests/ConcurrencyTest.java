@@ -7,11 +7,14 @@ import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.Updates;
 import com.mongodb.solcon.BaseMongoTest;
+import com.mongodb.solcon.DatasetFingerprint;
 import com.mongodb.solcon.DocumentFactory;
-import com.mongodb.solcon.Utils;
+import com.mongodb.solcon.DocumentShape;
+import com.mongodb.solcon.KeyDistribution;
+import com.mongodb.solcon.ParallelLoader;
+import com.mongodb.solcon.WriteCoalescer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import org.apache.commons.lang3.RandomUtils;
 import org.bson.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,11 +24,9 @@ import org.slf4j.LoggerFactory;
 public class ConcurrencyTest extends BaseMongoTest {
   private static final Logger logger = LoggerFactory.getLogger(ConcurrencyTest.class);
 
-  final int SAMPLESTRINGLENGTH = 1024 * 1024;
   MongoDatabase database;
   MongoCollection<RawBsonDocument> collection;
   int maxFieldsPerObject;
-  String bigrandomString;
   DocumentFactory docFactory = null;
 
   int docsizeBytes = 2048;
@@ -37,7 +38,6 @@ public class ConcurrencyTest extends BaseMongoTest {
     collection = database.getCollection(testConfig.getString("collection"), RawBsonDocument.class);
     parseTestParams();
 
-    bigrandomString = Utils.BigRandomText(SAMPLESTRINGLENGTH);
     maxFieldsPerObject =
         Objects.requireNonNullElse(testConfig.getInteger("maxFieldsPerObject"), 200);
 
@@ -46,7 +46,7 @@ public class ConcurrencyTest extends BaseMongoTest {
       docsizeBytes = (int) (testConfig.getDouble("docSizeKB") * 1024);
     }
 
-    docFactory = new DocumentFactory(threadNo, "OBJECTID", docsizeBytes, maxFieldsPerObject);
+    docFactory = createDocumentFactory(threadNo);
   }
 
   void parseTestParams() {}
@@ -65,12 +65,54 @@ public class ConcurrencyTest extends BaseMongoTest {
     if (threadNo == 0) {
       logger.info("Updates Per Thread = {}, Threads = {} ", nUpdatesPerThread, nThreads);
     }
-    for (int i = 0; i < nUpdatesPerThread; i++) {
-      int hotSpotId = hotSpotArray[RandomUtils.nextInt(0, nHotSpots)];
+    if (testReturnInfo != null) {
+      testReturnInfo.putIfAbsent("nUpdates", 0);
+    }
+    // Which of the hot spots each update goes to
+    KeyDistribution keys =
+        runContext.shared("keys", () -> KeyDistribution.fromConfig(testConfig, 0, nHotSpots));
+    // Or batched on the client, where increments to the same hot spot merge into one $inc
+    Document coalesceSpec = WriteCoalescer.specFromConfig(testConfig);
+    WriteCoalescer coalescer =
+        coalesceSpec == null
+            ? null
+            : runContext.shared("coalescer", () -> WriteCoalescer.create(coalesceSpec, collection));
+    Document increment = new Document("count", 1);
+    int nUpdatesRun;
+    for (nUpdatesRun = 0; keepRunning(nUpdatesRun, nUpdatesPerThread, 0, 0); nUpdatesRun++) {
+      int hotSpotId = hotSpotArray[(int) keys.next(random)];
+      long opStart = System.nanoTime();
+      if (coalescer != null) {
+        boolean written = coalescer.increment(hotSpotId, increment);
+        recordLatency(opStart);
+        if (!written) {
+          recordError();
+        }
+        continue;
+      }
       collection.updateOne(Filters.eq("_id", hotSpotId), Updates.inc("count", 1));
+      recordLatency(opStart);
+    }
+    if (coalescer != null && testReturnInfo != null) {
+      coalescer.report(testReturnInfo);
+    }
+    if (testReturnInfo != null) {
+      Integer finalNUpdatesRun = nUpdatesRun;
+      testReturnInfo.compute(
+          "nUpdates", (k, v) -> (v == null) ? finalNUpdatesRun : (Integer) v + finalNUpdatesRun);
     }
   }
 
+  // Factories are single threaded - each worker and each loader thread gets its own
+  DocumentFactory createDocumentFactory(long factoryThreadNo) {
+    return new DocumentFactory(
+        factoryThreadNo,
+        "OBJECTID",
+        docsizeBytes,
+        maxFieldsPerObject,
+        DocumentShape.fromConfig(testConfig, maxFieldsPerObject));
+  }
+
   // Reset is called for each variant
 
   public void GenerateData() {
@@ -78,53 +120,38 @@ public class ConcurrencyTest extends BaseMongoTest {
 
     int initialDocsToInsert = testConfig.getInteger("initialDocsToInsert", 100000);
 
-    if (collection.estimatedDocumentCount() == initialDocsToInsert) {
+    DatasetFingerprint dataset =
+        new DatasetFingerprint(
+            database,
+            collection.getNamespace().getCollectionName(),
+            DatasetFingerprint.fingerprintOf(
+                testConfig,
+                "initialDocsToInsert",
+                "docSizeKB",
+                "maxFieldsPerObject",
+                "shape"));
+    DatasetFingerprint.State state = dataset.check();
+    if (state == DatasetFingerprint.State.COMPLETE) {
       logger.info(
           "Collection already contains {} documents - not regenerating", initialDocsToInsert);
     } else {
       if (initialDocsToInsert > 0) {
-        collection.drop();
-
-        List<RawBsonDocument> batch = new ArrayList<>();
-        int size = 0;
-        int reportCount = 0;
-        for (int doc = 0; doc < initialDocsToInsert; doc++) {
-          Document extraFields = new Document("_id", doc);
-          extraFields.put("count", 0);
-
-          RawBsonDocument d = docFactory.createDocument(extraFields);
-          // Add some fields at the end to Query By
-          //
-          batch.add(d);
-          reportCount++;
-          size = size + d.getByteBuffer().remaining();
-          int writeBatchSize = 1000;
-          if (batch.size() >= writeBatchSize) {
-            try {
-              collection.insertMany(batch);
-            } catch (Exception e) {
-              logger.error("Error inserting batch", e);
-            }
-
-            if (reportCount > initialDocsToInsert / 20) {
-              logger.info(
-                  "Data Generation: Generated {} of {} = {}% complete",
-                  doc + 1, initialDocsToInsert, (double) (((doc + 1) * 100) / initialDocsToInsert));
-              reportCount = 0;
-            }
-            batch.clear();
-          }
-        }
-        if (!batch.isEmpty()) {
-          if (threadNo == 0) logger.info("Generated final batch of {}", (batch.size()));
-
-          try {
-            collection.insertMany(batch);
-          } catch (Exception e) {
-            logger.error("Error inserting batch", e);
-          }
-          batch.clear();
+        if (state == DatasetFingerprint.State.NONE) {
+          collection.drop();
         }
+
+        loadInfo =
+            new ParallelLoader(testConfig)
+                .load(
+                    collection,
+                    initialDocsToInsert,
+                    this::createDocumentFactory,
+                    (factory, doc) -> {
+                      Document extraFields = new Document("_id", (int) doc);
+                      extraFields.put("count", 0);
+                      return factory.createDocument(extraFields);
+                    },
+                    dataset);
       }
     }
   }
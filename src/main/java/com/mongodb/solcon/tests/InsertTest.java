@@ -3,10 +3,21 @@ package com.mongodb.solcon.tests;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.RenameCollectionOptions;
 import com.mongodb.solcon.BaseMongoTest;
+import com.mongodb.solcon.ChangeStreamMonitor;
 import com.mongodb.solcon.DocumentFactory;
+import com.mongodb.solcon.DocumentShape;
+import com.mongodb.solcon.ParallelLoader;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.bson.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,7 +26,19 @@ import org.slf4j.LoggerFactory;
 These may be defined at the top level or in the variant array
     * totalDocsToInsert - How much data to insert
     * docSizeKB ( in KB )
-    * maxFieldsPerObject (TODO)
+    * maxFieldsPerObject - fields in each nested object of a shape, default 200
+    * shape - nesting, arrays and field types of the documents, see DocumentShape
+    * pipelined - generate batches on a separate thread from the one inserting them
+    * pipelineDepth - how many ready batches may be queued for the writer, default 4
+    * resetStrategy - "copy" (default) empties the collection and copies initialDocsToInsert back in
+      with $out at each reset. "swap" builds the next variant's collection as <collection>_next
+      while the current variant runs and renames it over the test collection at reset. The build
+      competes with the measured run, so the results get a "stagingBuild" section with how long it
+      took (so far, if it hadn't finished) and how much of that was during the run
+    * stageAfterRun - with "swap", start building the next collection once the measured run has
+      finished rather than alongside it, default false
+    * changeStreams - watch the collection while inserting and measure the lag, see
+      ChangeStreamMonitor
     * numindexes (TODO)
  */
 public class InsertTest extends BaseMongoTest {
@@ -23,6 +46,7 @@ public class InsertTest extends BaseMongoTest {
 
   MongoDatabase database;
   MongoCollection<RawBsonDocument> collection;
+  com.mongodb.reactivestreams.client.MongoCollection<RawBsonDocument> reactiveCollection;
   MongoCollection<RawBsonDocument> initialCollection;
 
   int totalDocsToInsert;
@@ -32,7 +56,18 @@ public class InsertTest extends BaseMongoTest {
   String idType;
   int docsizeBytes = 2048;
   boolean generatePerVariant = false;
+  boolean pipelined;
+  int pipelineDepth;
+  boolean stampWrites; // Each document gets when it was made, for the change stream lag
   DocumentFactory docFactory = null;
+  String resetStrategy;
+  // The next variant's collection being built in the background, and how many indexes it gets
+  Future<?> staging;
+  int stagingIndexes;
+  boolean stageAfterRun;
+  Document stageNext; // The variant to build for once the run is over, with stageAfterRun
+  long stagingStartMillis;
+  volatile long stagingEndMillis;
 
   /* A FieldSet is a combination of an Integer, a Date and a String - The strings can very in length uniformly*/
   /* We use this set of 3 fields repeated in our documents */
@@ -76,10 +111,25 @@ public class InsertTest extends BaseMongoTest {
       writeBatchSize = variant.getInteger("writeBatchSize");
     }
 
-    nSecondaryIndexes = testConfig.getInteger("nSecondaryIndexes", 0);
-    if (variant != null && variant.getInteger("nSecondaryIndexes") != null) {
-      nSecondaryIndexes = variant.getInteger("nSecondaryIndexes");
+    pipelined = testConfig.getBoolean("pipelined", false);
+    if (variant != null && variant.getBoolean("pipelined") != null) {
+      pipelined = variant.getBoolean("pipelined");
+    }
+
+    stampWrites = ChangeStreamMonitor.specFromConfig(testConfig) != null;
+
+    pipelineDepth = testConfig.getInteger("pipelineDepth", 4);
+    if (variant != null && variant.getInteger("pipelineDepth") != null) {
+      pipelineDepth = variant.getInteger("pipelineDepth");
+    }
+
+    nSecondaryIndexes = secondaryIndexesFor(variant);
+
+    resetStrategy = testConfig.getString("resetStrategy");
+    if (resetStrategy == null) {
+      resetStrategy = "copy";
     }
+    stageAfterRun = testConfig.getBoolean("stageAfterRun", false);
 
     // Approx Doc Size in bytes - get from top level unless in varaint
     if (testConfig.getDouble("docSizeKB") != null) {
@@ -96,7 +146,7 @@ public class InsertTest extends BaseMongoTest {
       totalDocsToInsert = variant.getInteger("totalDocsToInsert");
     }
 
-    docFactory = new DocumentFactory(threadNo, idType, docsizeBytes, maxFieldsPerObject);
+    docFactory = createDocumentFactory(threadNo);
   }
 
   public void run() {
@@ -107,16 +157,44 @@ public class InsertTest extends BaseMongoTest {
     List<RawBsonDocument> batch = new ArrayList<>();
     int size = 0;
     int reportCount = 0;
-    for (int doc = 0; doc < docsPerThread; doc++) {
-      RawBsonDocument d = docFactory.createDocument();
+    if (testReturnInfo != null) {
+      testReturnInfo.putIfAbsent("nInserts", 0);
+    }
+    if (inFlightWindow != null) {
+      reactiveCollection =
+          reactiveClient
+              .getDatabase(testConfig.getString("database"))
+              .getCollection(testConfig.getString("collection"), RawBsonDocument.class);
+    }
+    if (pipelined && inFlightWindow == null) {
+      int finalDocsInserted = runPipelined(docsPerThread);
+      if (testReturnInfo != null) {
+        testReturnInfo.compute(
+            "nInserts",
+            (k, v) -> (v == null) ? finalDocsInserted : (Integer) v + finalDocsInserted);
+      }
+      return;
+    }
+    int doc;
+    for (doc = 0; keepRunning(doc, docsPerThread, 0, 0); doc++) {
+      RawBsonDocument d = newDocument();
       batch.add(d);
       reportCount++;
       size = size + d.getByteBuffer().remaining();
       if (batch.size() >= writeBatchSize) {
-        try {
-          collection.insertMany(batch);
-        } catch (Exception e) {
-          logger.error("Error inserting batch", e);
+        long opStart = System.nanoTime();
+        if (inFlightWindow != null) {
+          // The driver still owns this batch until the insert completes so start a new one
+          inFlightWindow.submit(reactiveCollection.insertMany(batch), opStart);
+          batch = new ArrayList<>();
+        } else {
+          try {
+            collection.insertMany(batch);
+          } catch (Exception e) {
+            logger.error("Error inserting batch", e);
+            recordError();
+          }
+          recordLatency(opStart);
         }
 
         if (threadNo == 0 && reportCount > docsPerThread / 20) {
@@ -133,13 +211,152 @@ public class InsertTest extends BaseMongoTest {
     if (!batch.isEmpty()) {
       if (threadNo == 0) logger.info("Inserting final batch of {}", (batch.size()));
 
-      try {
-        collection.insertMany(batch);
-      } catch (Exception e) {
-        logger.error("Error inserting batch", e);
+      long opStart = System.nanoTime();
+      if (inFlightWindow != null) {
+        inFlightWindow.submit(reactiveCollection.insertMany(batch), opStart);
+        batch = new ArrayList<>();
+      } else {
+        try {
+          collection.insertMany(batch);
+        } catch (Exception e) {
+          logger.error("Error inserting batch", e);
+          recordError();
+        }
+        recordLatency(opStart);
       }
       batch.clear();
     }
+    if (inFlightWindow != null) {
+      inFlightWindow.awaitAll();
+    }
+    if (testReturnInfo != null) {
+      Integer finalDocsInserted = doc;
+      testReturnInfo.compute(
+          "nInserts", (k, v) -> (v == null) ? finalDocsInserted : (Integer) v + finalDocsInserted);
+    }
+  }
+
+  /* A generator thread fills batches into a bounded queue and this thread only inserts them, so
+  building the next batch overlaps the round trip for this one. How full the queue runs says
+  which side is holding things up - if the writer usually finds it empty the client can't
+  generate fast enough, if the generator usually finds it full the server is the limit. */
+  private int runPipelined(int docsPerThread) {
+    BlockingQueue<List<RawBsonDocument>> ready = new ArrayBlockingQueue<>(pipelineDepth);
+    BlockingQueue<List<RawBsonDocument>> spare = new ArrayBlockingQueue<>(pipelineDepth + 2);
+    List<RawBsonDocument> endOfRun = new ArrayList<>(0);
+    long[] generatorCounts = new long[2]; // Batches queued, times the queue was full
+
+    Thread generator =
+        new Thread(
+            () -> {
+              int generated = 0;
+              try {
+                while (keepRunning(generated, docsPerThread, 0, 0)) {
+                  List<RawBsonDocument> batch = spare.poll();
+                  if (batch == null) {
+                    batch = new ArrayList<>(writeBatchSize);
+                  }
+                  while (batch.size() < writeBatchSize
+                      && keepRunning(generated, docsPerThread, 0, 0)) {
+                    batch.add(newDocument());
+                    generated++;
+                  }
+                  if (!ready.offer(batch)) {
+                    generatorCounts[1]++;
+                    ready.put(batch);
+                  }
+                  generatorCounts[0]++;
+                }
+                ready.put(endOfRun);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            },
+            "generator-" + threadNo);
+    generator.setDaemon(true);
+    generator.start();
+
+    int inserted = 0;
+    long takes = 0;
+    long emptyTakes = 0;
+    long queuedSum = 0;
+    try {
+      while (true) {
+        int queued = ready.size();
+        List<RawBsonDocument> batch = ready.poll();
+        boolean waited = batch == null;
+        if (waited) {
+          batch = ready.take();
+        }
+        if (batch == endOfRun) {
+          break;
+        }
+        takes++;
+        queuedSum += queued;
+        emptyTakes += waited ? 1 : 0;
+
+        long opStart = System.nanoTime();
+        try {
+          collection.insertMany(batch);
+        } catch (Exception e) {
+          logger.error("Error inserting batch", e);
+          recordError();
+        }
+        recordLatency(opStart);
+        inserted += batch.size();
+        batch.clear();
+        spare.offer(batch);
+      }
+      generator.join();
+    } catch (InterruptedException e) {
+      generator.interrupt();
+      Thread.currentThread().interrupt();
+    }
+
+    if (testReturnInfo != null) {
+      Document mine =
+          new Document("batches", takes)
+              .append("writerWaits", emptyTakes)
+              .append("queuedSum", queuedSum)
+              .append("generatorWaits", generatorCounts[1])
+              .append("pipelineDepth", pipelineDepth);
+      testReturnInfo.compute("pipeline", (k, v) -> mergePipelineStats((Document) v, mine));
+    }
+    return inserted;
+  }
+
+  // Sums the per thread counts and works out the averages over all threads so far
+  private static Document mergePipelineStats(Document total, Document mine) {
+    Document merged = new Document();
+    for (String key : List.of("batches", "writerWaits", "queuedSum", "generatorWaits")) {
+      long sum = mine.getLong(key) + (total == null ? 0 : total.getLong(key));
+      merged.put(key, sum);
+    }
+    long batches = Math.max(1, merged.getLong("batches"));
+    merged.put("pipelineDepth", mine.getInteger("pipelineDepth"));
+    merged.put("meanQueuedBatches", (double) merged.getLong("queuedSum") / batches);
+    merged.put("writerWaitedPercent", 100.0 * merged.getLong("writerWaits") / batches);
+    merged.put("generatorWaitedPercent", 100.0 * merged.getLong("generatorWaits") / batches);
+    return merged;
+  }
+
+  // Stamped as it is made, so time spent waiting in a batch counts towards the lag
+  private RawBsonDocument newDocument() {
+    if (stampWrites) {
+      return docFactory.createDocument(
+          new Document(ChangeStreamMonitor.STAMP_FIELD, ChangeStreamMonitor.stamp()));
+    }
+    return docFactory.createDocument();
+  }
+
+  // Factories are single threaded - each worker and each loader thread gets its own
+  DocumentFactory createDocumentFactory(long factoryThreadNo) {
+    return new DocumentFactory(
+        factoryThreadNo,
+        idType,
+        docsizeBytes,
+        maxFieldsPerObject,
+        DocumentShape.fromConfig(testConfig, maxFieldsPerObject));
   }
 
   // Reset is called for each variant
@@ -152,40 +369,13 @@ public class InsertTest extends BaseMongoTest {
     int initialDocsToInsert = testConfig.getInteger("initialDocsToInsert", 0);
     if (initialDocsToInsert > 0) {
       initialCollection.drop();
-      List<RawBsonDocument> batch = new ArrayList<>();
-      int size = 0;
-      int reportCount = 0;
-      for (int doc = 0; doc < initialDocsToInsert; doc++) {
-        RawBsonDocument d = docFactory.createDocument();
-        batch.add(d);
-        reportCount++;
-        size = size + d.getByteBuffer().remaining();
-        if (batch.size() >= writeBatchSize) {
-          try {
-            initialCollection.insertMany(batch);
-          } catch (Exception e) {
-            logger.error("Error inserting batch", e);
-          }
-
-          if (reportCount > initialDocsToInsert / 20) {
-            logger.info(
-                "Data Generation: Generated {} of {} = {}% complete",
-                doc + 1, initialDocsToInsert, (double) (((doc + 1) * 100) / initialDocsToInsert));
-            reportCount = 0;
-          }
-          batch.clear();
-        }
-      }
-      if (!batch.isEmpty()) {
-        if (threadNo == 0) logger.info("Generated final batch of {}", (batch.size()));
-
-        try {
-          initialCollection.insertMany(batch);
-        } catch (Exception e) {
-          logger.error("Error inserting batch", e);
-        }
-        batch.clear();
-      }
+      loadInfo =
+          new ParallelLoader(testConfig)
+              .load(
+                  initialCollection,
+                  initialDocsToInsert,
+                  this::createDocumentFactory,
+                  (factory, doc) -> factory.createDocument());
     }
   }
 
@@ -193,6 +383,13 @@ public class InsertTest extends BaseMongoTest {
     // Get all correct setup on reset
     parseTestParams();
 
+    int initialDocsToInsert = testConfig.getInteger("initialDocsToInsert", 0);
+
+    if (initialDocsToInsert > 0 && !generatePerVariant && resetStrategy.equals("swap")) {
+      swapInStaged();
+      return;
+    }
+
     logger.info("Dropping {}", collection.getNamespace());
     collection.drop();
     // If we need any secondary indices, make them here
@@ -202,8 +399,6 @@ public class InsertTest extends BaseMongoTest {
       collection.createIndex(new Document("intfield" + (idxno + 1), 1));
     }
 
-    int initialDocsToInsert = testConfig.getInteger("initialDocsToInsert", 0);
-
     if (initialDocsToInsert > 0) {
       if (generatePerVariant) {
         GenerateData();
@@ -221,6 +416,129 @@ public class InsertTest extends BaseMongoTest {
     }
   }
 
+  @Override
+  public void prepareNextReset(Document nextVariant) {
+    if (nextVariant == null
+        || !resetStrategy.equals("swap")
+        || generatePerVariant
+        || testConfig.getInteger("initialDocsToInsert", 0) == 0) {
+      return;
+    }
+    if (stageAfterRun) {
+      stageNext = nextVariant;
+      return;
+    }
+    startStaging(nextVariant);
+  }
+
+  @Override
+  public void runFinished(
+      ConcurrentHashMap<String, Object> testReturnInfo, Instant startTime, Instant endTime) {
+    if (stageNext != null) {
+      startStaging(stageNext);
+      stageNext = null;
+    } else if (staging != null) {
+      long end = stagingEndMillis;
+      boolean finished = end != 0;
+      long buildEnd = finished ? end : System.currentTimeMillis();
+      long overlapMs =
+          Math.max(
+              0,
+              Math.min(buildEnd, endTime.toEpochMilli())
+                  - Math.max(stagingStartMillis, startTime.toEpochMilli()));
+      testReturnInfo.put(
+          "stagingBuild",
+          new Document("concurrentWithRun", overlapMs > 0)
+              .append("finished", finished)
+              .append("buildMs", buildEnd - stagingStartMillis)
+              .append("overlapMs", overlapMs));
+    }
+  }
+
+  private void startStaging(Document nextVariant) {
+    int indexes = secondaryIndexesFor(nextVariant);
+    logger.info("Building the next variant's collection in the background");
+    ExecutorService builder =
+        Executors.newSingleThreadExecutor(
+            r -> {
+              Thread t = new Thread(r, "reset-builder");
+              t.setDaemon(true);
+              return t;
+            });
+    stagingIndexes = indexes;
+    stagingStartMillis = System.currentTimeMillis();
+    stagingEndMillis = 0;
+    staging =
+        builder.submit(
+            () -> {
+              try {
+                buildStaged(indexes);
+              } finally {
+                stagingEndMillis = System.currentTimeMillis();
+              }
+            });
+    builder.shutdown();
+  }
+
+  // Swap the prepared copy in for the test collection, building it now if it isn't there or was
+  // built for a different number of indexes
+  private void swapInStaged() {
+    boolean usable = staging != null && stagingIndexes == nSecondaryIndexes;
+    if (staging != null) {
+      long waitStart = System.nanoTime();
+      try {
+        staging.get();
+      } catch (ExecutionException e) {
+        logger.warn(
+            "Background build of the next collection failed, building it now", e.getCause());
+        usable = false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted waiting for the next collection", e);
+      }
+      logger.info(
+          "Waited {}ms for the background build", (System.nanoTime() - waitStart) / 1_000_000);
+      staging = null;
+    }
+    if (!usable) {
+      buildStaged(nSecondaryIndexes);
+    }
+    MongoCollection<RawBsonDocument> staged = stagedCollection();
+    logger.info("Swapping {} in for {}", staged.getNamespace(), collection.getNamespace());
+    staged.renameCollection(
+        collection.getNamespace(), new RenameCollectionOptions().dropTarget(true));
+  }
+
+  private void buildStaged(int indexes) {
+    MongoCollection<RawBsonDocument> staged = stagedCollection();
+    staged.drop();
+    initialCollection
+        .aggregate(Arrays.asList(new Document("$out", staged.getNamespace().getCollectionName())))
+        .toCollection();
+    // Building the indexes on the full collection is quicker than maintaining them during the copy
+    for (int idxno = 0; idxno < indexes; idxno++) {
+      staged.createIndex(new Document("intfield" + (idxno + 1), 1));
+    }
+    logger.info(
+        "Built {} with {} docs and {} secondary indexes",
+        staged.getNamespace(),
+        staged.estimatedDocumentCount(),
+        indexes);
+  }
+
+  private MongoCollection<RawBsonDocument> stagedCollection() {
+    return database.getCollection(
+        testConfig.getString("collection") + "_next", RawBsonDocument.class);
+  }
+
+  private int secondaryIndexesFor(Document variant) {
+    int indexes = testConfig.getInteger("nSecondaryIndexes", 0);
+    if (variant != null && variant.getInteger("nSecondaryIndexes") != null) {
+      indexes = variant.getInteger("nSecondaryIndexes");
+    }
+    return indexes;
+  }
+
   // WarmCache is called before each rune
   public void WarmCache() {
     logger.info("No cache warm up was required");
@@ -0,0 +1,348 @@
+package com.mongodb.solcon.tests;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.solcon.BaseMongoTest;
+import com.mongodb.solcon.DatasetFingerprint;
+import com.mongodb.solcon.DocumentFactory;
+import com.mongodb.solcon.DocumentShape;
+import com.mongodb.solcon.KeyDistribution;
+import com.mongodb.solcon.LatencyHistogram;
+import com.mongodb.solcon.NewIds;
+import com.mongodb.solcon.ParallelLoader;
+import com.mongodb.solcon.QueryTemplate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* A mix of operations on one collection in the same run, so we can see how reads hold up while
+writes go on - the YCSB core workloads A to F are all mixes of these. Each worker picks every
+operation at random by weight. Keys come from the test's KeyDistribution over the
+initialDocsToInsert documents, which have _id 0 to initialDocsToInsert - 1.
+
+    * operations - weights, e.g. { "read": 95, "update": 5 }, of
+        read       find one document by _id, or by "query" (a QueryTemplate) if the variant has one
+        rangeRead  up to rangeLength (default 100) documents in _id order from a key
+        update     $inc count on a document
+        upsert     the same with upsert, on a new _id upsertNewPercent (default 50) of the time
+        insert     a new document from the DocumentFactory, with the worker's next new _id
+        delete     the oldest document the worker inserted during the run, once the insert has
+                   been acknowledged - a miss if there isn't one
+    * nOps - how many operations over all threads, unless testTimeSecs is set
+
+New _ids come from NewIds, so every worker has its own - in distributed runs too. Inserted
+documents are removed again at reset so every variant starts with the same data.
+Latency and throughput are reported for each operation type under "operations" as well as for
+the mix as a whole. */
+
+public class MixedWorkloadTest extends BaseMongoTest {
+  private static final Logger logger = LoggerFactory.getLogger(MixedWorkloadTest.class);
+  static final String[] OPERATIONS = {"read", "rangeRead", "update", "upsert", "insert", "delete"};
+  static final int READ = 0;
+  static final int RANGE_READ = 1;
+  static final int UPDATE = 2;
+  static final int UPSERT = 3;
+  static final int INSERT = 4;
+  static final int DELETE = 5;
+
+  MongoDatabase database;
+  MongoCollection<RawBsonDocument> collection;
+  int maxFieldsPerObject;
+  DocumentFactory docFactory = null;
+  int docsizeBytes = 2048;
+
+  int initialDocsToInsert;
+  int[] cumulativeWeights;
+  int rangeLength;
+  int upsertNewPercent;
+  KeyDistribution keys;
+  QueryTemplate readQuery; // Null to read by _id
+  NewIds newIds;
+
+  public MixedWorkloadTest(
+      MongoClient client,
+      Document config,
+      long nThreads,
+      long threadNo,
+      ConcurrentHashMap<String, Object> testReturnInfo) {
+    super(client, config, nThreads, threadNo, testReturnInfo);
+
+    database = mongoClient.getDatabase(testConfig.getString("database"));
+    collection = database.getCollection(testConfig.getString("collection"), RawBsonDocument.class);
+    parseTestParams();
+
+    maxFieldsPerObject =
+        Objects.requireNonNullElse(testConfig.getInteger("maxFieldsPerObject"), 200);
+
+    // Approx Doc Size in bytes - get from top level unless in varaint
+    if (testConfig.getDouble("docSizeKB") != null) {
+      docsizeBytes = (int) (testConfig.getDouble("docSizeKB") * 1024);
+    }
+
+    docFactory = createDocumentFactory(threadNo);
+  }
+
+  void parseTestParams() {
+    initialDocsToInsert = testConfig.getInteger("initialDocsToInsert", 100000);
+  }
+
+  public void prepare() {
+    Document variant = testConfig.get("variant", Document.class);
+    Document weights = variant.get("operations", Document.class);
+    if (weights == null) {
+      weights = testConfig.get("operations", new Document("read", 50).append("update", 50));
+    }
+    cumulativeWeights = new int[OPERATIONS.length];
+    int total = 0;
+    for (int op = 0; op < OPERATIONS.length; op++) {
+      total += weights.getInteger(OPERATIONS[op], 0);
+      cumulativeWeights[op] = total;
+    }
+    if (total == 0) {
+      throw new IllegalArgumentException("operations needs at least one weight above 0");
+    }
+    rangeLength = variant.getInteger("rangeLength", testConfig.getInteger("rangeLength", 100));
+    upsertNewPercent =
+        variant.getInteger("upsertNewPercent", testConfig.getInteger("upsertNewPercent", 50));
+
+    // One for all the workers, so sequential and latest keys are shared
+    keys =
+        runContext.shared(
+            "keys", () -> KeyDistribution.fromConfig(testConfig, 0, initialDocsToInsert));
+    Document query = variant.get("query", Document.class);
+    if (query != null) {
+      readQuery =
+          runContext.shared(
+              "queryTemplate",
+              () -> QueryTemplate.compile(query, KeyDistribution.specFromConfig(testConfig)));
+    }
+    // Carry on from anything a warmup inserted rather than colliding with it
+    long base =
+        runContext.shared(
+            "newIdBase", () -> Math.max(initialDocsToInsert, highestInsertedId() + 1));
+    newIds = new NewIds(base, threadNo, nThreads);
+
+    if (threadNo == 0) {
+      logger.info("Operation weights {} over {} documents", weights.toJson(), initialDocsToInsert);
+    }
+  }
+
+  public void run() {
+    Document variant = testConfig.get("variant", Document.class);
+    int nOps = variant.getInteger("nOps", 100000);
+    int nOpsPerThread = Math.toIntExact(nOps / nThreads);
+    int testTimeSecsGlobal = testConfig.getInteger("testTimeSecs", 0);
+    int testTimeSecsVariant = variant.getInteger("testTimeSecs", 0);
+    int testTimeSecs = testTimeSecsVariant > 0 ? testTimeSecsVariant : testTimeSecsGlobal;
+    if (testTimeSecs > 0 && threadNo == 0) {
+      logger.info("Test time is set to {} seconds", testTimeSecs);
+    }
+    if (testReturnInfo != null) {
+      testReturnInfo.putIfAbsent("nOps", 0);
+    }
+
+    LatencyHistogram[] opLatency = new LatencyHistogram[OPERATIONS.length];
+    long[] misses = new long[OPERATIONS.length];
+    for (int op = 0; op < OPERATIONS.length; op++) {
+      opLatency[op] = new LatencyHistogram();
+    }
+    UpdateOptions upsert = new UpdateOptions().upsert(true);
+    Bson increment = Updates.inc("count", 1);
+    Bson byId = Sorts.ascending("_id");
+
+    long startSecs = new Date().getTime();
+    long startNanos = System.nanoTime();
+    int nOpsRun;
+    for (nOpsRun = 0; keepRunning(nOpsRun, nOpsPerThread, startSecs, testTimeSecs); nOpsRun++) {
+      int op = chooseOperation();
+      long opStart = nextOperationStart();
+      boolean hit = true;
+      try {
+        switch (op) {
+          case READ:
+            Bson query =
+                readQuery != null
+                    ? readQuery.generate(random)
+                    : Filters.eq("_id", keys.next(random));
+            hit = collection.find(query).limit(1).first() != null;
+            break;
+          case RANGE_READ:
+            int length = 1 + random.nextInt(rangeLength);
+            int found = 0;
+            for (RawBsonDocument ignored :
+                collection
+                    .find(Filters.gte("_id", keys.next(random)))
+                    .sort(byId)
+                    .limit(length)) {
+              found++;
+            }
+            hit = found > 0;
+            break;
+          case UPDATE:
+            UpdateResult updated =
+                collection.updateOne(Filters.eq("_id", keys.next(random)), increment);
+            hit = updated.getMatchedCount() == 1;
+            break;
+          case UPSERT:
+            boolean upsertNew = random.nextInt(100) < upsertNewPercent;
+            long upsertId = upsertNew ? newIds.next() : keys.next(random);
+            collection.updateOne(
+                Filters.eq("_id", upsertId),
+                Updates.combine(increment, Updates.setOnInsert("created", new Date())),
+                upsert);
+            if (upsertNew) {
+              keys.inserted(newIds.acknowledge()); // Only once it's there to be read
+            }
+            break;
+          case INSERT:
+            long newId = newIds.next();
+            collection.insertOne(
+                docFactory.createDocument(new Document("_id", newId).append("count", 0)));
+            keys.inserted(newIds.acknowledge());
+            break;
+          default: // DELETE
+            long deleteId = newIds.nextToDelete();
+            if (deleteId >= 0) {
+              DeleteResult deleted = collection.deleteOne(Filters.eq("_id", deleteId));
+              hit = deleted.getDeletedCount() == 1;
+            } else {
+              hit = false;
+            }
+        }
+        recordLatency(opStart);
+        opLatency[op].recordValue(System.nanoTime() - opStart);
+      } catch (Exception e) {
+        logger.error("Error in {}", OPERATIONS[op], e);
+        recordLatency(opStart);
+        recordError();
+        opLatency[op].recordValue(System.nanoTime() - opStart);
+        opLatency[op].recordError();
+      }
+      if (!hit) {
+        misses[op]++;
+      }
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    if (testReturnInfo != null) {
+      Integer finalNOpsRun = nOpsRun;
+      testReturnInfo.compute(
+          "nOps", (k, v) -> (v == null) ? finalNOpsRun : (Integer) v + finalNOpsRun);
+      testReturnInfo.compute(
+          "operations", (k, v) -> mergeOperationStats((Document) v, opLatency, misses, seconds));
+    }
+  }
+
+  // The highest _id inserted since the reset, or -1 if there are none
+  private long highestInsertedId() {
+    RawBsonDocument doc =
+        collection
+            .find(Filters.gte("_id", initialDocsToInsert))
+            .sort(new Document("_id", -1))
+            .projection(new Document("_id", 1))
+            .first();
+    return doc == null ? -1 : doc.getNumber("_id").longValue();
+  }
+
+  private int chooseOperation() {
+    int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    int op = 0;
+    while (pick >= cumulativeWeights[op]) {
+      op++;
+    }
+    return op;
+  }
+
+  // Adds this worker's counts and latencies to what the other workers reported. Rates are each
+  // worker's count over its own run time, summed, as every worker runs for the whole test
+  private static Document mergeOperationStats(
+      Document soFar, LatencyHistogram[] opLatency, long[] misses, double seconds) {
+    Document merged = new Document();
+    for (int op = 0; op < OPERATIONS.length; op++) {
+      LatencyHistogram latency = opLatency[op];
+      long opMisses = misses[op];
+      double opsPerSec = seconds > 0 ? latency.getTotalCount() / seconds : 0;
+      Document previous = soFar == null ? null : soFar.get(OPERATIONS[op], Document.class);
+      if (previous != null) {
+        LatencyHistogram combined =
+            LatencyHistogram.fromDocument(previous.get("latency", Document.class));
+        combined.add(latency);
+        latency = combined;
+        opMisses += previous.getLong("misses");
+        opsPerSec += previous.getDouble("opsPerSec");
+      }
+      if (latency.getTotalCount() > 0) {
+        merged.append(
+            OPERATIONS[op],
+            new Document("count", latency.getTotalCount())
+                .append("misses", opMisses)
+                .append("opsPerSec", Math.round(opsPerSec * 10) / 10.0)
+                .append("latency", latency.toDocument()));
+      }
+    }
+    return merged;
+  }
+
+  // Factories are single threaded - each worker and each loader thread gets its own
+  DocumentFactory createDocumentFactory(long factoryThreadNo) {
+    return new DocumentFactory(
+        factoryThreadNo,
+        "OBJECTID",
+        docsizeBytes,
+        maxFieldsPerObject,
+        DocumentShape.fromConfig(testConfig, maxFieldsPerObject));
+  }
+
+  // Reset is called for each variant
+
+  public void GenerateData() {
+    parseTestParams();
+
+    DatasetFingerprint dataset =
+        new DatasetFingerprint(
+            database,
+            collection.getNamespace().getCollectionName(),
+            DatasetFingerprint.fingerprintOf(
+                testConfig, "initialDocsToInsert", "docSizeKB", "maxFieldsPerObject", "shape"));
+    DatasetFingerprint.State state = dataset.check();
+    if (state == DatasetFingerprint.State.COMPLETE) {
+      logger.info(
+          "Collection already contains {} documents - not regenerating", initialDocsToInsert);
+    } else if (initialDocsToInsert > 0) {
+      if (state == DatasetFingerprint.State.NONE) {
+        collection.drop();
+      }
+      loadInfo =
+          new ParallelLoader(testConfig)
+              .load(
+                  collection,
+                  initialDocsToInsert,
+                  this::createDocumentFactory,
+                  (factory, doc) ->
+                      factory.createDocument(new Document("_id", doc).append("count", 0)),
+                  dataset);
+    }
+  }
+
+  public void TestReset() {
+    parseTestParams();
+    logger.info("Deleting anything that has been inserted beyond {}", initialDocsToInsert);
+    collection.deleteMany(Filters.gte("_id", initialDocsToInsert));
+    GenerateData(); // In case we blew the cluster away - NoOp if exists
+  }
+
+  // WarmCache is called before each rune
+  public void WarmCache() {
+    logger.info("No cache warm up was required");
+  }
+}
@@ -5,12 +5,16 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.solcon.BaseMongoTest;
+import com.mongodb.solcon.DatasetFingerprint;
 import com.mongodb.solcon.DocumentFactory;
-import com.mongodb.solcon.Utils;
+import com.mongodb.solcon.DocumentShape;
+import com.mongodb.solcon.KeyDistribution;
+import com.mongodb.solcon.ParallelLoader;
+import com.mongodb.solcon.QueryTemplate;
+import com.mongodb.solcon.ServerSideGenerator;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
 import org.bson.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,16 +22,11 @@ import org.slf4j.LoggerFactory;
 /* In this test we want ot be able to test retrieving by an index and perhaps retrieving not by an index */
 
 public class QueryTest extends BaseMongoTest {
-  private static final Pattern RAND_INT = Pattern.compile("^RANDINT\\((\\d+),(\\d+)\\)$");
-  private static final Pattern RAND_INT_LIST =
-      Pattern.compile("^RANDINTLIST\\((\\d+),(\\d+),(\\d+)\\)$");
   private static final Logger logger = LoggerFactory.getLogger(QueryTest.class);
-  final int MEANSTRINGLENGTH = 32;
-  final int SAMPLESTRINGLENGTH = 1024 * 1024;
   MongoDatabase database;
   MongoCollection<RawBsonDocument> collection;
+  com.mongodb.reactivestreams.client.MongoCollection<RawBsonDocument> reactiveCollection;
   int maxFieldsPerObject;
-  String bigrandomString;
   DocumentFactory docFactory = null;
   HashMap<Integer, Integer> map = new HashMap<>();
   int docsizeBytes = 2048;
@@ -44,7 +43,6 @@ public class QueryTest extends BaseMongoTest {
     collection = database.getCollection(testConfig.getString("collection"), RawBsonDocument.class);
     parseTestParams();
 
-    bigrandomString = Utils.BigRandomText(SAMPLESTRINGLENGTH);
     maxFieldsPerObject =
         Objects.requireNonNullElse(testConfig.getInteger("maxFieldsPerObject"), 200);
 
@@ -53,37 +51,37 @@ public class QueryTest extends BaseMongoTest {
       docsizeBytes = (int) (testConfig.getDouble("docSizeKB") * 1024);
     }
 
-    docFactory = new DocumentFactory(threadNo, "OBJECTID", docsizeBytes, maxFieldsPerObject);
+    docFactory = createDocumentFactory(threadNo);
   }
 
   void parseTestParams() {}
 
-  public void run() {
+  int limit;
+  int skip;
+  Document projection;
+  QueryTemplate queryTemplate;
+  Document statusBefore;
 
+  public void prepare() {
     Document variant = testConfig.get("variant", Document.class);
-    int nQueries = variant.getInteger("nQueries", 100000);
-    int nQueriesPerThread = Math.toIntExact(nQueries / nThreads);
-
-    // If we define a Test wide or per variant time - then that overrides nQueries
-
-    int testTimeSecsGlobal = testConfig.getInteger("testTimeSecs", 0);
-    int testTimeSecsVariant = variant.getInteger("testTimeSecs", 0);
-    int testTimeSecs = testTimeSecsVariant > 0 ? testTimeSecsVariant : testTimeSecsGlobal;
-    if (testTimeSecs > 0 && threadNo == 0) {
-      logger.info("Test time is set to {} seconds", testTimeSecs);
-    }
-    int limit = variant.getInteger("limit", 1);
-    int skip = variant.getInteger("skip", 0);
-    Document projection = variant.get("projection", Document.class);
+    limit = variant.getInteger("limit", 1);
+    skip = variant.getInteger("skip", 0);
+    projection = variant.get("projection", Document.class);
     if (projection == null) {
       projection = new Document("_id", 0).append("nofieldsplease", 1);
     }
-    Document queryTemplate = variant.get("query", Document.class);
-    Document statusBefore =
-        mongoClient.getDatabase("admin").runCommand(new Document("serverStatus", 1));
+    // Compiled once for all the workers so SEQ counts across them
+    queryTemplate =
+        runContext.shared(
+            "queryTemplate",
+            () ->
+                QueryTemplate.compile(
+                    variant.get("query", Document.class),
+                    KeyDistribution.specFromConfig(testConfig)));
 
-    Document newQuery = processDocument(queryTemplate);
     if (threadNo == 0) {
+      statusBefore = mongoClient.getDatabase("admin").runCommand(new Document("serverStatus", 1));
+      RawBsonDocument newQuery = queryTemplate.generate(random);
       logger.info("Template: {}", queryTemplate.toJson());
       logger.info("Example: {}", newQuery.toJson());
       Document explain =
@@ -98,22 +96,58 @@ public class QueryTest extends BaseMongoTest {
       }
       logger.debug("Explain: {}", explain.toJson());
     }
+    if (inFlightWindow != null) {
+      reactiveCollection =
+          reactiveClient
+              .getDatabase(testConfig.getString("database"))
+              .getCollection(testConfig.getString("collection"), RawBsonDocument.class);
+    }
+  }
+
+  public void run() {
+
+    Document variant = testConfig.get("variant", Document.class);
+    int nQueries = variant.getInteger("nQueries", 100000);
+    int nQueriesPerThread = Math.toIntExact(nQueries / nThreads);
+
+    // If we define a Test wide or per variant time - then that overrides nQueries
+
+    int testTimeSecsGlobal = testConfig.getInteger("testTimeSecs", 0);
+    int testTimeSecsVariant = variant.getInteger("testTimeSecs", 0);
+    int testTimeSecs = testTimeSecsVariant > 0 ? testTimeSecsVariant : testTimeSecsGlobal;
+    if (testTimeSecs > 0 && threadNo == 0) {
+      logger.info("Test time is set to {} seconds", testTimeSecs);
+    }
+    RawBsonDocument newQuery;
     if (testReturnInfo != null) {
       testReturnInfo.put("nQueries", 0);
     }
     // If a Test Time is defined then this overrides nQueries
     long startSecs = new Date().getTime();
     int nQueriesRun;
-    for (nQueriesRun = 0; nQueriesRun < nQueriesPerThread || testTimeSecs > 0; nQueriesRun++) {
-      newQuery = processDocument(queryTemplate);
-      long now = new Date().getTime();
-      if (testTimeSecs > 0 && (now - startSecs) / 1000 >= testTimeSecs) {
-
-        break;
-      }
+    for (nQueriesRun = 0;
+        keepRunning(nQueriesRun, nQueriesPerThread, startSecs, testTimeSecs);
+        nQueriesRun++) {
+      newQuery = queryTemplate.generate(random);
       AtomicInteger totalLength = new AtomicInteger();
       AtomicInteger count = new AtomicInteger();
 
+      long opStart = nextOperationStart();
+      if (inFlightWindow != null) {
+        RawBsonDocument submitted = newQuery;
+        inFlightWindow.submit(
+            reactiveCollection.find(newQuery).limit(limit).skip(skip).projection(projection),
+            opStart,
+            null,
+            returned -> {
+              if (returned != limit) {
+                logger.error(
+                    "Count {}  was not equal to limit {}: {}", returned, limit, submitted.toJson());
+                recordError();
+              }
+            });
+        continue;
+      }
       collection
           .find(newQuery)
           .limit(limit)
@@ -124,28 +158,33 @@ public class QueryTest extends BaseMongoTest {
                 count.incrementAndGet();
                 totalLength.addAndGet(item.getByteBuffer().limit()); // length in character
               });
+      recordLatency(opStart);
 
       if (count.get() != limit) {
         logger.error(
             "Count {}  was not equal to limit {}: {}", count.get(), limit, newQuery.toJson());
-        System.exit(1);
+        recordError(); // As the reactive path does, rather than ending the whole benchmark
       }
     }
 
+    if (inFlightWindow != null) {
+      inFlightWindow.awaitAll();
+    }
+
     if (testReturnInfo != null) {
       Integer finalNQueriesRun = nQueriesRun;
       testReturnInfo.compute(
           "nQueries", (k, v) -> (v == null) ? finalNQueriesRun : (Integer) v + finalNQueriesRun);
     }
 
-    if (threadNo == 0) {
+    if (threadNo == 0 && statusBefore != null) {
       Document statusAfter =
           mongoClient.getDatabase("admin").runCommand(new Document("serverStatus", 1));
       showCacheRead(statusBefore, statusAfter);
     }
   }
 
-  private void showCacheRead(Document statusBefore, Document statusAfter) {
+  void showCacheRead(Document statusBefore, Document statusAfter) {
     long cb;
     long ca;
     try {
@@ -183,6 +222,16 @@ public class QueryTest extends BaseMongoTest {
         "{} MB of data was read into the cache during this test.", (ca - cb) / (1024 * 1024));
   }
 
+  // Factories are single threaded - each worker and each loader thread gets its own
+  DocumentFactory createDocumentFactory(long factoryThreadNo) {
+    return new DocumentFactory(
+        factoryThreadNo,
+        "OBJECTID",
+        docsizeBytes,
+        maxFieldsPerObject,
+        DocumentShape.fromConfig(testConfig, maxFieldsPerObject));
+  }
+
   // Reset is called for each variant
 
   public void GenerateData() {
@@ -191,67 +240,86 @@ public class QueryTest extends BaseMongoTest {
     int initialDocsToInsert = testConfig.getInteger("initialDocsToInsert", 100000);
     int groupSize = testConfig.getInteger("groupSize", 400);
 
-    if (collection.estimatedDocumentCount() == initialDocsToInsert) {
+    DatasetFingerprint dataset =
+        new DatasetFingerprint(
+            database,
+            collection.getNamespace().getCollectionName(),
+            DatasetFingerprint.fingerprintOf(
+                testConfig,
+                "initialDocsToInsert",
+                "groupSize",
+                "docSizeKB",
+                "maxFieldsPerObject",
+                "shape",
+                "serverSideGeneration"));
+    DatasetFingerprint.State state = dataset.check();
+    if (state == DatasetFingerprint.State.NONE && initialDocsToInsert > 0) {
+      collection.drop();
+    }
+    // Every time, not only after a drop, as a resumed or crashed load may be without them -
+    // createIndex does nothing if they are already there
+    collection.createIndex(new Document("group", 1)); // Groups of N
+    collection.createIndex(
+        new Document("group", 1).append("group_seq_i", 1)); // Position in Group
+
+    if (state == DatasetFingerprint.State.COMPLETE) {
       logger.info(
           "Collection already contains {} documents - not regenerating", initialDocsToInsert);
     } else {
       if (initialDocsToInsert > 0) {
-        collection.drop();
-
-        collection.createIndex(new Document("group", 1)); // Groups of N
-
-        collection.createIndex(
-            new Document("group", 1).append("group_seq_i", 1)); // Position in Group
-        Document extraFields = new Document();
-        List<RawBsonDocument> batch = new ArrayList<>();
-        int size = 0;
-        int reportCount = 0;
         int nGroups = initialDocsToInsert / groupSize;
-        for (long doc = 0; doc < initialDocsToInsert; doc++) {
-          // Serial Numbering
-          extraFields.put("_id", doc);
-          // A Group of related data is not co-located usually
-          extraFields.put("group", doc % nGroups);
-          // A Group of related data is not co-located usually
-          extraFields.put("group_seq", Math.floor(doc / nGroups));
-          extraFields.put("group_seq_i", Math.floor(doc / nGroups));
-          RawBsonDocument d = docFactory.createDocument(extraFields);
-          // Add some fields at the end to Query By
-          //
-          batch.add(d);
-          reportCount++;
-          size = size + d.getByteBuffer().remaining();
-          int writeBatchSize = 1000;
-          if (batch.size() >= writeBatchSize) {
-            try {
-              collection.insertMany(batch);
-            } catch (Exception e) {
-              logger.error("Error inserting batch", e);
-            }
-
-            if (reportCount > initialDocsToInsert / 20) {
-              logger.info(
-                  "Data Generation: Generated {} of {} = {}% complete",
-                  doc + 1, initialDocsToInsert, (double) (((doc + 1) * 100) / initialDocsToInsert));
-              reportCount = 0;
-            }
-            batch.clear();
-          }
-        }
-        if (!batch.isEmpty()) {
-          if (threadNo == 0) logger.info("Generated final batch of {}", (batch.size()));
-
-          try {
-            collection.insertMany(batch);
-          } catch (Exception e) {
-            logger.error("Error inserting batch", e);
+        if (testConfig.getBoolean("serverSideGeneration", false)) {
+          if (DocumentShape.fromConfig(testConfig, maxFieldsPerObject) == null) {
+            generateServerSide(initialDocsToInsert, nGroups, dataset);
+            return;
           }
-          batch.clear();
+          logger.warn("Can't generate a document shape server side - generating in the client");
         }
+        loadInfo =
+            new ParallelLoader(testConfig)
+                .load(
+                    collection,
+                    initialDocsToInsert,
+                    this::createDocumentFactory,
+                    (factory, doc) -> {
+                      Document extraFields = new Document();
+                      // Serial Numbering
+                      extraFields.put("_id", doc);
+                      // A Group of related data is not co-located usually
+                      extraFields.put("group", doc % nGroups);
+                      extraFields.put("group_seq", Math.floor(doc / nGroups));
+                      extraFields.put("group_seq_i", Math.floor(doc / nGroups));
+                      return factory.createDocument(extraFields);
+                    },
+                    dataset);
       }
     }
   }
 
+  // The same fields as the client side load, built by an aggregation on the server
+  private void generateServerSide(
+      int initialDocsToInsert, int nGroups, DatasetFingerprint dataset) {
+    Document groupSeq =
+        new Document("$floor", new Document("$divide", List.of("$n", (long) nGroups)));
+    Document fields =
+        new Document("_id", "$n")
+            .append("group", new Document("$mod", List.of("$n", (long) nGroups)))
+            .append("group_seq", groupSeq)
+            .append("group_seq_i", groupSeq);
+    Document sampleFields =
+        new Document("_id", 0L)
+            .append("group", 0L)
+            .append("group_seq", 0.0)
+            .append("group_seq_i", 0.0);
+    int fieldSets = ServerSideGenerator.fieldSetsIn(docFactory.createDocument(sampleFields));
+    // One slice to record the settings - $merge keeps what is there so resuming is running again
+    dataset.slices(initialDocsToInsert, 1);
+    loadInfo =
+        new ServerSideGenerator(testConfig)
+            .generate(database, collection, initialDocsToInsert, fields, fieldSets);
+    dataset.markComplete(loadInfo);
+  }
+
   public void TestReset() {
     parseTestParams();
     GenerateData(); // In case we blew the cluster away - NoOp if exists
@@ -269,69 +337,4 @@ public class QueryTest extends BaseMongoTest {
 
     return new Document();
   }
-
-  @SuppressWarnings("unchecked")
-  private Document processDocument(Document inputDoc) {
-    Document processedDoc = new Document();
-    for (Map.Entry<String, Object> entry : inputDoc.entrySet()) {
-      processedDoc.put(entry.getKey(), processValue(entry.getValue()));
-    }
-    return processedDoc;
-  }
-
-  /**
-   * Recursively process a value. If it's a string with RANDINT or RANDINTLIST, replace it with
-   * actual random data. Supports nested documents and lists.
-   */
-  @SuppressWarnings("unchecked")
-  private Object processValue(Object input) {
-    if (input instanceof String) {
-      String str = (String) input;
-
-      var m = RAND_INT.matcher(str);
-      if (m.matches()) {
-        int from = Integer.parseInt(m.group(1));
-        int to = Integer.parseInt(m.group(2));
-        return random.nextInt((to - from) + 1) + from - 1;
-      }
-
-      m = RAND_INT_LIST.matcher(str);
-      if (m.matches()) {
-        int from = Integer.parseInt(m.group(1));
-        int to = Integer.parseInt(m.group(2));
-        int len = Integer.parseInt(m.group(3));
-
-        // Ensure we don’t ask for more unique numbers than possible
-        if (len > (to - from + 1)) {
-          throw new IllegalArgumentException(
-              "Not enough unique numbers in range to satisfy length " + len);
-        }
-
-        Set<Integer> valuesSet = new LinkedHashSet<>();
-        while (valuesSet.size() < len) {
-          valuesSet.add(random.nextInt((to - from) + 1) + from - 1);
-        }
-
-        return new ArrayList<>(valuesSet);
-      }
-
-      return str;
-    } else if (input instanceof Document) {
-      Document originalDoc = (Document) input;
-      Document processedDoc = new Document();
-      for (Map.Entry<String, Object> entry : originalDoc.entrySet()) {
-        processedDoc.put(entry.getKey(), processValue(entry.getValue()));
-      }
-      return processedDoc;
-    } else if (input instanceof List<?>) {
-      List<?> originalList = (List<?>) input;
-      List<Object> processedList = new ArrayList<>();
-      for (Object elem : originalList) {
-        processedList.add(processValue(elem));
-      }
-      return processedList;
-    } else {
-      return input; // leave unchanged
-    }
-  }
 }
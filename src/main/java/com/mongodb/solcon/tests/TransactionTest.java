@@ -0,0 +1,279 @@
+package com.mongodb.solcon.tests;
+
+import com.mongodb.MongoException;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadConcernLevel;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.TransactionBody;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.mongodb.solcon.KeyDistribution;
+import com.mongodb.solcon.LatencyHistogram;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Multi-document transactions over UpdateTest's data - documents with integer _ids from 0 and a
+count field - run with ClientSession.withTransaction, so they are retried as an application
+using the driver's callback API would be. Needs a replica set or sharded cluster. Test specific
+parameters:
+    * nCollections - top level only, the data is loaded into this many collections, the first
+      with the test's collection name and the rest with _1, _2 ... on the end, default 1
+    * readsPerTxn / updatesPerTxn - finds by _id and $inc of count in each transaction, each on
+      a collection and document picked at random, defaults 2 and 2
+    * docRange - documents 1 to docRange - 1 are used, smaller means more conflicts, picked with
+      the test's KeyDistribution
+    * nTransactions / testTimeSecs - how many over all threads, or for how long
+    * readConcern / writeConcern - for the transactions, defaults snapshot and majority
+
+Latency is per transaction, start to commit including any retries. The "transactions" section
+of the results has the commits, the attempts it took (each run of the body is one), the
+TransientTransactionError and write conflict errors the operations saw, and commit latency -
+from the end of the body that succeeded to withTransaction returning. A retry caused by the
+commit itself shows in the attempts but not in the errors, which are only the operations'. */
+
+public class TransactionTest extends UpdateTest {
+  private static final Logger logger = LoggerFactory.getLogger(TransactionTest.class);
+  private static final int WRITE_CONFLICT = 112;
+
+  List<MongoCollection<RawBsonDocument>> collections;
+  int readsPerTxn;
+  int updatesPerTxn;
+  TransactionOptions transactionOptions;
+  KeyDistribution keys;
+
+  // This worker's counts, only touched by its own thread
+  long attempts;
+  long transientErrors;
+  long writeConflicts;
+  long bodyEndNanos;
+
+  public TransactionTest(
+      MongoClient client,
+      Document config,
+      long nThreads,
+      long threadNo,
+      ConcurrentHashMap<String, Object> testReturnInfo) {
+    super(client, config, nThreads, threadNo, testReturnInfo);
+    collections = new ArrayList<>();
+    for (String name : collectionNames()) {
+      collections.add(database.getCollection(name, RawBsonDocument.class));
+    }
+  }
+
+  List<String> collectionNames() {
+    String name = testConfig.getString("collection");
+    int nCollections = testConfig.getInteger("nCollections", 1);
+    List<String> names = new ArrayList<>(nCollections);
+    names.add(name);
+    for (int i = 1; i < nCollections; i++) {
+      names.add(name + "_" + i);
+    }
+    return names;
+  }
+
+  @Override
+  public void prepare() {
+    Document variant = testConfig.get("variant", Document.class);
+    readsPerTxn = variant.getInteger("readsPerTxn", testConfig.getInteger("readsPerTxn", 2));
+    updatesPerTxn = variant.getInteger("updatesPerTxn", testConfig.getInteger("updatesPerTxn", 2));
+    int docRange = variant.getInteger("docRange", 100000);
+    String readConcern =
+        variant.getString("readConcern") != null
+            ? variant.getString("readConcern")
+            : testConfig.getString("readConcern");
+    String writeConcern =
+        variant.getString("writeConcern") != null
+            ? variant.getString("writeConcern")
+            : testConfig.getString("writeConcern");
+    transactionOptions =
+        TransactionOptions.builder()
+            .readConcern(
+                new ReadConcern(
+                    ReadConcernLevel.fromString(readConcern != null ? readConcern : "snapshot")))
+            .writeConcern(
+                writeConcern != null ? WriteConcern.valueOf(writeConcern) : WriteConcern.MAJORITY)
+            .build();
+    if (transactionOptions.getWriteConcern() == null) {
+      throw new IllegalArgumentException("Unknown writeConcern " + writeConcern);
+    }
+
+    // Ids 1 to docRange - 1 as UpdateTest, one distribution for all the workers
+    keys =
+        runContext.shared("keys", () -> KeyDistribution.fromConfig(testConfig, 1, docRange - 1));
+
+    if (threadNo == 0) {
+      logger.info(
+          "Transactions of {} reads and {} updates over {} collections, {} threads",
+          readsPerTxn,
+          updatesPerTxn,
+          collections.size(),
+          nThreads);
+    }
+  }
+
+  @Override
+  public void run() {
+    Document variant = testConfig.get("variant", Document.class);
+    int nTransactions = variant.getInteger("nTransactions", 100000);
+    int nTransactionsPerThread = Math.toIntExact(nTransactions / nThreads);
+    int testTimeSecsGlobal = testConfig.getInteger("testTimeSecs", 0);
+    int testTimeSecsVariant = variant.getInteger("testTimeSecs", 0);
+    int testTimeSecs = testTimeSecsVariant > 0 ? testTimeSecsVariant : testTimeSecsGlobal;
+    if (testTimeSecs > 0 && threadNo == 0) {
+      logger.info("Test time is set to {} seconds", testTimeSecs);
+    }
+    if (testReturnInfo != null) {
+      testReturnInfo.putIfAbsent("nTransactions", 0);
+    }
+
+    Bson increment = Updates.inc("count", 1);
+    LatencyHistogram commitLatency = new LatencyHistogram();
+    long committed = 0;
+    long failed = 0;
+    attempts = 0;
+    transientErrors = 0;
+    writeConflicts = 0;
+
+    long startSecs = new Date().getTime();
+    long startNanos = System.nanoTime();
+    int nTransactionsRun = 0;
+    try (ClientSession session = mongoClient.startSession()) {
+      TransactionBody<Void> body =
+          () -> {
+            attempts++;
+            try {
+              for (int r = 0; r < readsPerTxn; r++) {
+                nextCollection().find(session, Filters.eq("_id", nextId())).first();
+              }
+              for (int u = 0; u < updatesPerTxn; u++) {
+                nextCollection().updateOne(session, Filters.eq("_id", nextId()), increment);
+              }
+            } catch (MongoException e) {
+              if (e.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)) {
+                transientErrors++;
+              }
+              if (e.getCode() == WRITE_CONFLICT) {
+                writeConflicts++;
+              }
+              throw e;
+            }
+            bodyEndNanos = System.nanoTime();
+            return null;
+          };
+
+      for (nTransactionsRun = 0;
+          keepRunning(nTransactionsRun, nTransactionsPerThread, startSecs, testTimeSecs);
+          nTransactionsRun++) {
+        long opStart = nextOperationStart();
+        try {
+          session.withTransaction(body, transactionOptions);
+          long end = System.nanoTime();
+          recordLatency(opStart);
+          commitLatency.recordValue(end - bodyEndNanos);
+          committed++;
+        } catch (Exception e) {
+          recordLatency(opStart);
+          recordError();
+          if (failed++ == 0) {
+            logger.error("Transaction failed", e);
+          }
+        }
+      }
+    } catch (Exception e) {
+      logger.error("An error occurred {}", e.getMessage());
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    if (testReturnInfo != null) {
+      Integer finalNTransactionsRun = nTransactionsRun;
+      testReturnInfo.compute(
+          "nTransactions",
+          (k, v) -> (v == null) ? finalNTransactionsRun : (Integer) v + finalNTransactionsRun);
+      Document mine =
+          new Document("committed", committed)
+              .append("failed", failed)
+              .append("attempts", attempts)
+              .append("transientErrors", transientErrors)
+              .append("writeConflicts", writeConflicts);
+      double commitsPerSec = seconds > 0 ? committed / seconds : 0;
+      testReturnInfo.compute(
+          "transactions",
+          (k, v) -> mergeTransactionStats((Document) v, mine, commitLatency, commitsPerSec));
+    }
+  }
+
+  private MongoCollection<RawBsonDocument> nextCollection() {
+    return collections.size() == 1
+        ? collections.get(0)
+        : collections.get(random.nextInt(collections.size()));
+  }
+
+  private int nextId() {
+    return (int) keys.next(random);
+  }
+
+  private static Document mergeTransactionStats(
+      Document soFar, Document mine, LatencyHistogram commitLatency, double commitsPerSec) {
+    Document merged = new Document();
+    for (String key : mine.keySet()) {
+      merged.append(key, mine.getLong(key) + (soFar == null ? 0 : soFar.getLong(key)));
+    }
+    LatencyHistogram latency = commitLatency;
+    if (soFar != null) {
+      latency = LatencyHistogram.fromDocument(soFar.get("commitLatency", Document.class));
+      latency.add(commitLatency);
+      commitsPerSec += soFar.getDouble("commitsPerSec");
+    }
+    long committed = merged.getLong("committed");
+    long attempts = merged.getLong("attempts");
+    long finished = committed + merged.getLong("failed");
+    merged.append("commitsPerSec", Math.round(commitsPerSec * 10) / 10.0);
+    merged.append("retries", attempts - finished);
+    if (committed > 0) {
+      merged.append("retriesPerCommit", (attempts - finished) / (double) committed);
+    }
+    if (attempts > 0) {
+      // Every attempt that didn't end in a commit was aborted
+      merged.append("abortRate", (attempts - committed) / (double) attempts);
+      merged.append("transientErrorRate", merged.getLong("transientErrors") / (double) attempts);
+    }
+    merged.append("commitLatency", latency.toDocument());
+    return merged;
+  }
+
+  // Every collection gets the same data as UpdateTest's one
+
+  @Override
+  public void GenerateData() {
+    MongoCollection<RawBsonDocument> first = collection;
+    try {
+      for (MongoCollection<RawBsonDocument> each : collections) {
+        collection = each;
+        super.GenerateData();
+      }
+    } finally {
+      collection = first;
+    }
+  }
+
+  @Override
+  public void TestReset() {
+    MongoCollection<RawBsonDocument> first = collection;
+    try {
+      for (MongoCollection<RawBsonDocument> each : collections) {
+        collection = each;
+        super.TestReset();
+      }
+    } finally {
+      collection = first;
+    }
+  }
+}
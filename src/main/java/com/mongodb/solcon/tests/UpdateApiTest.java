@@ -6,16 +6,16 @@ import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.*;
 import com.mongodb.client.result.UpdateResult;
 import com.mongodb.solcon.BaseMongoTest;
+import com.mongodb.solcon.DatasetFingerprint;
 import com.mongodb.solcon.DocumentFactory;
-import com.mongodb.solcon.Utils;
-import org.apache.commons.lang3.RandomUtils;
+import com.mongodb.solcon.DocumentShape;
+import com.mongodb.solcon.KeyDistribution;
+import com.mongodb.solcon.ParallelLoader;
 import org.bson.Document;
 import org.bson.RawBsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -24,11 +24,9 @@ import java.util.concurrent.ConcurrentHashMap;
 public class UpdateApiTest extends BaseMongoTest {
     private static final Logger logger = LoggerFactory.getLogger(UpdateApiTest.class);
 
-    final int SAMPLESTRINGLENGTH = 1024 * 1024;
     MongoDatabase database;
     MongoCollection<RawBsonDocument> collection;
     int maxFieldsPerObject;
-    String bigrandomString;
     DocumentFactory docFactory = null;
 
     int docsizeBytes = 2048;
@@ -40,7 +38,6 @@ public class UpdateApiTest extends BaseMongoTest {
         collection = database.getCollection(testConfig.getString("collection"), RawBsonDocument.class);
         parseTestParams();
 
-        bigrandomString = Utils.BigRandomText(SAMPLESTRINGLENGTH);
         maxFieldsPerObject =
                 Objects.requireNonNullElse(testConfig.getInteger("maxFieldsPerObject"), 200);
 
@@ -49,7 +46,7 @@ public class UpdateApiTest extends BaseMongoTest {
             docsizeBytes = (int) (testConfig.getDouble("docSizeKB") * 1024);
         }
 
-        docFactory = new DocumentFactory(threadNo, "OBJECTID", docsizeBytes, maxFieldsPerObject);
+        docFactory = createDocumentFactory(threadNo);
     }
 
     void parseTestParams() {
@@ -84,21 +81,27 @@ public class UpdateApiTest extends BaseMongoTest {
                     "nUpdatesPerThread (nupdates/nthreads) is greater than initialDocsToInsert - this is not allowed");
             return;
         }
+        KeyDistribution keys = runContext.shared("keys",
+                () -> KeyDistribution.fromConfig(testConfig, 0, initialDocsToInsert));
+        // Each worker takes every nThreads'th new id from its threadNo on - unique across
+        // distributed processes too, and together dense enough for the latest distribution
+        long newIdsTaken = 0;
         // logger.info("Starting Update Test");
         int i;
-        for (i = 0; i < nUpdatesPerThread; i++) {
+        for (i = 0; keepRunning(i, nUpdatesPerThread, 0, 0); i++) {
 
-            boolean isNew = (percentNew > 0) && (RandomUtils.nextInt(0, 100) < percentNew);
+            boolean isNew = (percentNew > 0) && (random.nextInt(100) < percentNew);
             int id;
             if (isNew) {
-                id = (int) (initialDocsToInsert + (threadNo * initialDocsToInsert) + i);
+                id = Math.toIntExact(initialDocsToInsert + threadNo + newIdsTaken++ * nThreads);
             } else {
-                id = RandomUtils.nextInt(0, initialDocsToInsert);
+                id = (int) keys.next(random);
             }
 
             Document extraFields = new Document("_id", id);
             RawBsonDocument fullDoc = docFactory.createDocument(extraFields);
 
+            long opStart = nextOperationStart();
             if (updateMode.equalsIgnoreCase("UpdateOne")) {
                 UpdateOptions options = new UpdateOptions();
                 if (useUpsert) {
@@ -133,10 +136,25 @@ public class UpdateApiTest extends BaseMongoTest {
             } else {
                 logger.error("Unknown Update Mode {}", updateMode);
             }
+            recordLatency(opStart);
+            if (isNew) {
+                keys.inserted(id); // Only once it's written so reads never go looking for it
+            }
+        }
+        if (testReturnInfo != null) {
+            Integer finalNUpdatesRun = i;
+            testReturnInfo.compute(
+                    "nUpdates", (k, v) -> (v == null) ? finalNUpdatesRun : (Integer) v + finalNUpdatesRun);
         }
         // logger.info("Finished Update Test completed {} updates", i);
     }
 
+    // Factories are single threaded - each worker and each loader thread gets its own
+    DocumentFactory createDocumentFactory(long factoryThreadNo) {
+        return new DocumentFactory(factoryThreadNo, "OBJECTID", docsizeBytes, maxFieldsPerObject,
+                DocumentShape.fromConfig(testConfig, maxFieldsPerObject));
+    }
+
     // Reset is called for each variant
 
     public void GenerateData() {
@@ -144,53 +162,32 @@ public class UpdateApiTest extends BaseMongoTest {
 
         int initialDocsToInsert = testConfig.getInteger("initialDocsToInsert", 100000);
 
-        if (collection.estimatedDocumentCount() == initialDocsToInsert) {
+        DatasetFingerprint dataset =
+                new DatasetFingerprint(
+                        database,
+                        collection.getNamespace().getCollectionName(),
+                        DatasetFingerprint.fingerprintOf(
+                                testConfig,
+                                "initialDocsToInsert",
+                                "docSizeKB",
+                                "maxFieldsPerObject",
+                                "shape"));
+        DatasetFingerprint.State state = dataset.check();
+        if (state == DatasetFingerprint.State.COMPLETE) {
             logger.info(
                     "Collection already contains {} documents - not regenerating", initialDocsToInsert);
         } else {
             if (initialDocsToInsert > 0) {
-                collection.drop();
-
-                List<RawBsonDocument> batch = new ArrayList<>();
-                int size = 0;
-                int reportCount = 0;
-                for (int doc = 0; doc < initialDocsToInsert; doc++) {
-                    Document extraFields = new Document("_id", doc);
-                    extraFields.put("count", 0);
-
-                    RawBsonDocument d = docFactory.createDocument(extraFields);
-                    // Add some fields at the end to Query By
-                    //
-                    batch.add(d);
-                    reportCount++;
-                    size = size + d.getByteBuffer().remaining();
-                    int writeBatchSize = 1000;
-                    if (batch.size() >= writeBatchSize) {
-                        try {
-                            collection.insertMany(batch);
-                        } catch (Exception e) {
-                            logger.error("Error inserting batch", e);
-                        }
-
-                        if (reportCount > initialDocsToInsert / 20) {
-                            logger.info(
-                                    "Data Generation: Generated {} of {} = {}% complete",
-                                    doc + 1, initialDocsToInsert, (double) (((doc + 1) * 100) / initialDocsToInsert));
-                            reportCount = 0;
-                        }
-                        batch.clear();
-                    }
-                }
-                if (!batch.isEmpty()) {
-                    if (threadNo == 0) logger.info("Generated final batch of {}", (batch.size()));
-
-                    try {
-                        collection.insertMany(batch);
-                    } catch (Exception e) {
-                        logger.error("Error inserting batch", e);
-                    }
-                    batch.clear();
+                if (state == DatasetFingerprint.State.NONE) {
+                    collection.drop();
                 }
+
+                loadInfo = new ParallelLoader(testConfig).load(collection, initialDocsToInsert,
+                        this::createDocumentFactory, (factory, doc) -> {
+                            Document extraFields = new Document("_id", (int) doc);
+                            extraFields.put("count", 0);
+                            return factory.createDocument(extraFields);
+                        }, dataset);
             }
         }
     }
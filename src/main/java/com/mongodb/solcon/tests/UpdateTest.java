@@ -5,11 +5,16 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.result.UpdateResult;
 import com.mongodb.solcon.BaseMongoTest;
+import com.mongodb.solcon.ChangeStreamMonitor;
+import com.mongodb.solcon.DatasetFingerprint;
 import com.mongodb.solcon.DocumentFactory;
-import com.mongodb.solcon.Utils;
-import org.apache.commons.lang3.RandomUtils;
+import com.mongodb.solcon.DocumentShape;
+import com.mongodb.solcon.KeyDistribution;
+import com.mongodb.solcon.ParallelLoader;
+import com.mongodb.solcon.WriteCoalescer;
 import org.bson.BsonDocument;
 import org.bson.BsonValue;
 import org.bson.Document;
@@ -26,11 +31,10 @@ import java.util.concurrent.ConcurrentHashMap;
 public class UpdateTest extends BaseMongoTest {
     private static final Logger logger = LoggerFactory.getLogger(UpdateTest.class);
 
-    final int SAMPLESTRINGLENGTH = 1024 * 1024;
     MongoDatabase database;
     MongoCollection<RawBsonDocument> collection;
+    com.mongodb.reactivestreams.client.MongoCollection<RawBsonDocument> reactiveCollection;
     int maxFieldsPerObject;
-    String bigrandomString;
     DocumentFactory docFactory = null;
 
     int docsizeBytes = 2048;
@@ -42,7 +46,6 @@ public class UpdateTest extends BaseMongoTest {
         collection = database.getCollection(testConfig.getString("collection"), RawBsonDocument.class);
         parseTestParams();
 
-        bigrandomString = Utils.BigRandomText(SAMPLESTRINGLENGTH);
         maxFieldsPerObject =
                 Objects.requireNonNullElse(testConfig.getInteger("maxFieldsPerObject"), 200);
 
@@ -51,7 +54,7 @@ public class UpdateTest extends BaseMongoTest {
             docsizeBytes = (int) (testConfig.getDouble("docSizeKB") * 1024);
         }
 
-        docFactory = new DocumentFactory(threadNo, "OBJECTID", docsizeBytes, maxFieldsPerObject);
+        docFactory = createDocumentFactory(threadNo);
     }
 
     void parseTestParams() {
@@ -208,39 +211,100 @@ public class UpdateTest extends BaseMongoTest {
                 update = new Document("$inc", mutation);
             }
 
+            if (inFlightWindow != null) {
+                reactiveCollection = reactiveClient
+                        .getDatabase(testConfig.getString("database"))
+                        .getCollection(testConfig.getString("collection"), RawBsonDocument.class);
+            }
+
+            // Ids 1 to docRange - 1, one distribution for all the workers
+            KeyDistribution keys = runContext.shared("keys",
+                    () -> KeyDistribution.fromConfig(testConfig, 1, docRange - 1));
+            // Or batched on the client with the other workers' writes, see WriteCoalescer
+            Document coalesceSpec = WriteCoalescer.specFromConfig(testConfig);
+            WriteCoalescer coalescer = coalesceSpec == null ? null
+                    : runContext.shared("coalescer", () -> WriteCoalescer.create(coalesceSpec, collection));
+            // Each update also sets when it was sent, for the change stream lag
+            boolean stampWrites = ChangeStreamMonitor.specFromConfig(testConfig) != null;
+
             // If a Test Time is defined then this overrides nQueries
             long startSecs = new Date().getTime();
             if (testReturnInfo != null) {
                 testReturnInfo.put("nUpdates", 0);
             }
 
-            for (nUpdatesRun = 0; nUpdatesRun < nUpdatesPerThread || testTimeSecs > 0; nUpdatesRun++) {
+            for (nUpdatesRun = 0;
+                 keepRunning(nUpdatesRun, nUpdatesPerThread, startSecs, testTimeSecs);
+                 nUpdatesRun++) {
                 int id;
 
-                id = RandomUtils.nextInt(1, docRange);
+                id = (int) keys.next(random);
                 Bson query = Filters.eq("_id", id);
 
-                long now = new Date().getTime();
-                if (testTimeSecs > 0 && (now - startSecs) / 1000 >= testTimeSecs) {
-
-                    break;
-                }
-
                 UpdateResult ur;
+                long opStart = nextOperationStart();
+                Document stampedUpdate = update;
+                if (stampWrites) {
+                    long stamp = ChangeStreamMonitor.stamp();
+                    stampedUpdate = expressive
+                            ? new Document("$set", new Document(mutation)
+                                    .append(ChangeStreamMonitor.STAMP_FIELD, stamp))
+                            : new Document(update).append("$set",
+                                    new Document(ChangeStreamMonitor.STAMP_FIELD, stamp));
+                }
+                if (coalescer != null) {
+                    boolean written;
+                    if (expressive) {
+                        written = coalescer.write(id, new UpdateOneModel<>(query, List.of(stampedUpdate)));
+                    } else if (stampWrites) {
+                        written = coalescer.write(id, new UpdateOneModel<>(query, stampedUpdate));
+                    } else {
+                        written = coalescer.increment(id, mutation);
+                    }
+                    recordLatency(opStart);
+                    if (!written) {
+                        recordError();
+                    }
+                    continue;
+                }
+                if (inFlightWindow != null) {
+                    int submittedId = id;
+                    inFlightWindow.submit(
+                            expressive
+                                    ? reactiveCollection.updateOne(query, List.of(stampedUpdate))
+                                    : reactiveCollection.updateOne(query, stampedUpdate),
+                            opStart,
+                            result -> {
+                                if (result.getModifiedCount() != 1) {
+                                    logger.error("Update failed for id {}", submittedId);
+                                    recordError();
+                                }
+                            },
+                            null);
+                    continue;
+                }
                 if (expressive) {
                     ur =
-                            collection.updateOne(query, List.of(update));
+                            collection.updateOne(query, List.of(stampedUpdate));
                 } else {
                     ur =
-                            collection.updateOne(query, update);
+                            collection.updateOne(query, stampedUpdate);
                 }
+                recordLatency(opStart);
                 if (ur.getModifiedCount() != 1) {
                     logger.error("Update failed for id {}", id);
+                    recordError();
                 }
 
                 logger.debug("Update Result {}", ur);
 
             }
+            if (inFlightWindow != null) {
+                inFlightWindow.awaitAll();
+            }
+            if (coalescer != null && testReturnInfo != null) {
+                coalescer.report(testReturnInfo);
+            }
 
         } catch (Exception e) {
             logger.error("An error occurred {}", e.getMessage());
@@ -253,6 +317,12 @@ public class UpdateTest extends BaseMongoTest {
         }
     }
 
+    // Factories are single threaded - each worker and each loader thread gets its own
+    DocumentFactory createDocumentFactory(long factoryThreadNo) {
+        return new DocumentFactory(factoryThreadNo, "OBJECTID", docsizeBytes, maxFieldsPerObject,
+                DocumentShape.fromConfig(testConfig, maxFieldsPerObject));
+    }
+
     // Reset is called for each variant
 
     public void GenerateData() {
@@ -261,53 +331,32 @@ public class UpdateTest extends BaseMongoTest {
         int initialDocsToInsert = testConfig.getInteger("initialDocsToInsert", 100000);
         boolean documentValidation = testConfig.getBoolean("documentValidation", false);
 
-        if (collection.estimatedDocumentCount() == initialDocsToInsert) {
+        DatasetFingerprint dataset =
+                new DatasetFingerprint(
+                        database,
+                        collection.getNamespace().getCollectionName(),
+                        DatasetFingerprint.fingerprintOf(
+                                testConfig,
+                                "initialDocsToInsert",
+                                "docSizeKB",
+                                "maxFieldsPerObject",
+                                "shape"));
+        DatasetFingerprint.State state = dataset.check();
+        if (state == DatasetFingerprint.State.COMPLETE) {
             logger.info(
                     "Collection already contains {} documents - not regenerating", initialDocsToInsert);
         } else {
             if (initialDocsToInsert > 0) {
-                collection.drop();
-
-                List<RawBsonDocument> batch = new ArrayList<>();
-                int size = 0;
-                int reportCount = 0;
-                for (int doc = 0; doc < initialDocsToInsert; doc++) {
-                    Document extraFields = new Document("_id", doc);
-                    extraFields.put("count", 0);
-
-                    RawBsonDocument d = docFactory.createDocument(extraFields);
-                    // Add some fields at the end to Query By
-                    //
-                    batch.add(d);
-                    reportCount++;
-                    size = size + d.getByteBuffer().remaining();
-                    int writeBatchSize = 1000;
-                    if (batch.size() >= writeBatchSize) {
-                        try {
-                            collection.insertMany(batch);
-                        } catch (Exception e) {
-                            logger.error("Error inserting batch", e);
-                        }
-
-                        if (reportCount > initialDocsToInsert / 20) {
-                            logger.info(
-                                    "Data Generation: Generated {} of {} = {}% complete",
-                                    doc + 1, initialDocsToInsert, (double) (((doc + 1) * 100) / initialDocsToInsert));
-                            reportCount = 0;
-                        }
-                        batch.clear();
-                    }
+                if (state == DatasetFingerprint.State.NONE) {
+                    collection.drop();
                 }
-                if (!batch.isEmpty()) {
-                    if (threadNo == 0) logger.info("Generated final batch of {}", (batch.size()));
 
-                    try {
-                        collection.insertMany(batch);
-                    } catch (Exception e) {
-                        logger.error("Error inserting batch", e);
-                    }
-                    batch.clear();
-                }
+                loadInfo = new ParallelLoader(testConfig).load(collection, initialDocsToInsert,
+                        this::createDocumentFactory, (factory, doc) -> {
+                            Document extraFields = new Document("_id", (int) doc);
+                            extraFields.put("count", 0);
+                            return factory.createDocument(extraFields);
+                        }, dataset);
             }
         }
 